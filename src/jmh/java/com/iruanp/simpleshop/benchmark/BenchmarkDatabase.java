@@ -0,0 +1,155 @@
+package com.iruanp.simpleshop.benchmark;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.iruanp.simpleshop.Config;
+import com.iruanp.simpleshop.ShopCatalog;
+import com.iruanp.simpleshop.ShopDatabase;
+import com.iruanp.simpleshop.Simpleshop;
+import com.iruanp.simpleshop.service.ShopService;
+import com.mojang.serialization.JsonOps;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.component.DataComponentTypes;
+import net.minecraft.component.type.LoreComponent;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.registry.BuiltinRegistries;
+import net.minecraft.registry.RegistryWrapper;
+import net.minecraft.text.Text;
+
+/**
+ * A generated shop database of the given size. Databases are kept under
+ * build/jmh-databases and reused between runs; one with the wrong number of
+ * listings is thrown away and generated again.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkDatabase {
+    static final int LISTINGS_PER_SHOP = 100;
+    private static final Item[] SAMPLE_ITEMS = {
+            Items.DIAMOND, Items.IRON_INGOT, Items.OAK_LOG, Items.DIAMOND_SWORD,
+            Items.WRITTEN_BOOK, Items.SHULKER_BOX, Items.ENCHANTED_GOLDEN_APPLE, Items.COBBLESTONE
+    };
+    private static boolean bootstrapped;
+
+    @Param({"1000", "10000", "100000"})
+    public int listings;
+
+    public ShopDatabase database;
+    public ShopService shopService;
+    private List<String> shopNames;
+    private List<Integer> itemIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        bootstrap();
+
+        Path dir = Path.of(System.getProperty("simpleshop.benchmarkDir", "build/jmh-databases"), "listings-" + listings);
+        Files.createDirectories(dir);
+        database = new ShopDatabase(dir.toString(), false);
+        if (database.getCatalog().getItems().size() != listings) {
+            database.close();
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(file);
+                }
+            }
+            database = new ShopDatabase(dir.toString(), false);
+            populate();
+        }
+        shopService = new ShopService(database);
+
+        shopNames = new ArrayList<>();
+        for (ShopCatalog.ShopRecord shop : database.getCatalog().getShops()) {
+            shopNames.add(shop.name);
+        }
+        itemIds = new ArrayList<>();
+        for (ShopCatalog.ItemRecord item : database.getCatalog().getItems()) {
+            itemIds.add(item.id);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        database.close();
+    }
+
+    public String randomShop() {
+        return shopNames.get(ThreadLocalRandom.current().nextInt(shopNames.size()));
+    }
+
+    public int randomItem() {
+        return itemIds.get(ThreadLocalRandom.current().nextInt(itemIds.size()));
+    }
+
+    private void populate() {
+        String icon = ItemStack.CODEC.encodeStart(Simpleshop.jsonops, new ItemStack(Items.CHEST)).getOrThrow().toString();
+        String creator = UUID.randomUUID().toString();
+        CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+
+        for (int shop = 0; shop * LISTINGS_PER_SHOP < listings; shop++) {
+            String name = "Shop " + shop;
+            database.addShop(name, icon, "Benchmark shop " + shop, shop % 10 == 0);
+            int shopId = database.getShopIdByName(name);
+
+            int count = Math.min(LISTINGS_PER_SHOP, listings - shop * LISTINGS_PER_SHOP);
+            for (int i = 0; i < count; i++) {
+                int n = shop * LISTINGS_PER_SHOP + i;
+                last = database.addItem(shopId, sampleStack(n), 64, n % 2 == 0, BigDecimal.valueOf(1 + n % 500, 1), creator);
+            }
+        }
+        last.join();
+    }
+
+    static ItemStack sampleStack(int n) {
+        ItemStack stack = new ItemStack(SAMPLE_ITEMS[n % SAMPLE_ITEMS.length]);
+        if (n % 3 == 0) {
+            stack.set(DataComponentTypes.CUSTOM_NAME, Text.literal("Listing #" + n));
+        }
+        if (n % 5 == 0) {
+            stack.set(DataComponentTypes.LORE, new LoreComponent(List.of(
+                    Text.literal("Generated for benchmarks"),
+                    Text.literal("Batch " + n / LISTINGS_PER_SHOP))));
+        }
+        return stack;
+    }
+
+    /**
+     * Sets up what the mod normally gets from the running server: item
+     * registries, registry-aware codecs and the config.
+     */
+    static synchronized void bootstrap() throws IOException {
+        if (bootstrapped) {
+            return;
+        }
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+
+        RegistryWrapper.WrapperLookup registries = BuiltinRegistries.createWrapperLookup();
+        Simpleshop.jsonops = registries.getOps(JsonOps.INSTANCE);
+        Simpleshop.nbtops = registries.getOps(NbtOps.INSTANCE);
+
+        Config.init(Files.createTempDirectory("simpleshop-jmh"));
+        bootstrapped = true;
+    }
+}
@@ -0,0 +1,55 @@
+package com.iruanp.simpleshop.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.iruanp.simpleshop.service.InventoryPlan;
+import com.iruanp.simpleshop.service.InventoryService;
+
+import net.minecraft.inventory.SimpleInventory;
+import net.minecraft.item.ItemStack;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InventoryServiceBenchmark {
+    // Main inventory, armor and offhand
+    private static final int PLAYER_INVENTORY_SIZE = 41;
+
+    @State(Scope.Benchmark)
+    public static class FullInventory {
+        InventoryService inventoryService = new InventoryService();
+        SimpleInventory inventory = new SimpleInventory(PLAYER_INVENTORY_SIZE);
+        ItemStack target;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            BenchmarkDatabase.bootstrap();
+            for (int i = 0; i < PLAYER_INVENTORY_SIZE; i++) {
+                ItemStack stack = BenchmarkDatabase.sampleStack(i);
+                stack.setCount(stack.getMaxCount());
+                inventory.setStack(i, stack);
+            }
+            target = BenchmarkDatabase.sampleStack(0);
+        }
+    }
+
+    @Benchmark
+    public int countMatchingItems(FullInventory state) {
+        return state.inventoryService.countMatchingItems(state.inventory, state.target);
+    }
+
+    @Benchmark
+    public boolean takeAndRestock(FullInventory state) {
+        InventoryPlan.of(state.inventory, state.target).remove(1);
+        return InventoryPlan.of(state.inventory, state.target).insert(1);
+    }
+}
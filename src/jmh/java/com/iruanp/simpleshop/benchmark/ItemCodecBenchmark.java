@@ -0,0 +1,60 @@
+package com.iruanp.simpleshop.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.iruanp.simpleshop.ItemCodec;
+import com.iruanp.simpleshop.Simpleshop;
+
+import net.minecraft.item.ItemStack;
+
+/**
+ * Listing decode cost without the item cache in front, for both stored forms.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ItemCodecBenchmark {
+    private static final int SAMPLES = 256;
+
+    @State(Scope.Benchmark)
+    public static class Samples {
+        ItemStack[] stacks = new ItemStack[SAMPLES];
+        byte[][] blobs = new byte[SAMPLES][];
+        String[] json = new String[SAMPLES];
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            BenchmarkDatabase.bootstrap();
+            for (int i = 0; i < SAMPLES; i++) {
+                stacks[i] = BenchmarkDatabase.sampleStack(i);
+                blobs[i] = ItemCodec.encode(stacks[i]);
+                json[i] = ItemStack.CODEC.encodeStart(Simpleshop.jsonops, stacks[i]).getOrThrow().toString();
+            }
+        }
+    }
+
+    @Benchmark
+    public ItemStack decodeBlob(Samples samples) {
+        return ItemCodec.decode(samples.blobs[ThreadLocalRandom.current().nextInt(SAMPLES)]);
+    }
+
+    @Benchmark
+    public ItemStack decodeJson(Samples samples) {
+        return ItemCodec.decodeJson(samples.json[ThreadLocalRandom.current().nextInt(SAMPLES)]);
+    }
+
+    @Benchmark
+    public byte[] encode(Samples samples) {
+        return ItemCodec.encode(samples.stacks[ThreadLocalRandom.current().nextInt(SAMPLES)]);
+    }
+}
@@ -0,0 +1,61 @@
+package com.iruanp.simpleshop.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.iruanp.simpleshop.ShopCatalog;
+import com.iruanp.simpleshop.ShopDatabase.TradeType;
+import com.iruanp.simpleshop.service.ShopEntry;
+import com.iruanp.simpleshop.service.ShopItemEntry;
+
+import net.minecraft.item.ItemStack;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ShopDatabaseBenchmark {
+    private static final int PAGE_SIZE = 45;
+
+    @Benchmark
+    public List<ShopItemEntry> getShopItems(BenchmarkDatabase db) {
+        return db.shopService.getShopItems(db.randomShop());
+    }
+
+    @Benchmark
+    public List<ShopItemEntry> getShopItemsFirstPage(BenchmarkDatabase db) {
+        return db.shopService.getShopItemsAfter(db.randomShop(), 0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public ItemStack getItemStack(BenchmarkDatabase db) {
+        return db.database.getItemStack(db.randomItem());
+    }
+
+    @Benchmark
+    public List<ShopEntry> getShops(BenchmarkDatabase db) {
+        return db.shopService.getShops();
+    }
+
+    /**
+     * One buy or sell plus the restock that undoes it, so stock levels stay
+     * put across iterations. Covers the catalog update and the queued
+     * conditional UPDATE and ledger insert.
+     */
+    @Benchmark
+    public void tradeCycle(BenchmarkDatabase db, Blackhole blackhole) {
+        int itemId = db.randomItem();
+        ShopCatalog.ItemRecord item = db.database.getCatalog().getItem(itemId);
+        if (item.isSelling) {
+            blackhole.consume(db.database.executeTrade(itemId, TradeType.STOCK, 1, "benchmark"));
+            blackhole.consume(db.database.executeTrade(itemId, TradeType.BUY, 1, "benchmark"));
+        } else {
+            blackhole.consume(db.database.executeTrade(itemId, TradeType.SELL, 1, "benchmark"));
+            blackhole.consume(db.database.executeTrade(itemId, TradeType.TAKE, 1, "benchmark"));
+        }
+    }
+}
@@ -19,6 +19,21 @@ public class Config {
     public static class ConfigData {
         public String language = "en_us";
         public String shopTitle = "Shop List";
+        public boolean asyncWrites = true;
+        public int itemCacheSizeKb = 8192;
+        public int maintenanceIntervalMinutes = 60;
+        public int maintenanceTimeBudgetMs = 2000;
+        public int maintenanceBatchSize = 500;
+        public int notificationRetentionDays = 30;
+        public int tradeRetentionDays = 90;
+        public int payoutIntervalMinutes = 10;
+        public int metricsIntervalSeconds = 60;
+        public int slowOperationThresholdMs = 10;
+        public int slowLogMaxSizeKb = 1024;
+        public int slowLogBackups = 3;
+        public int tickBudgetMs = 5;
+        public int tickWindowTicks = 100;
+        public int findResultCount = 5;
     }
 
     public static void init(Path rootConfigDir) {
@@ -77,6 +92,66 @@ public class Config {
         saveConfig();
     }
 
+    public static boolean isAsyncWrites() {
+        return configData.asyncWrites;
+    }
+
+    public static int getItemCacheSizeKb() {
+        return configData.itemCacheSizeKb;
+    }
+
+    public static int getMaintenanceIntervalMinutes() {
+        return configData.maintenanceIntervalMinutes;
+    }
+
+    public static int getMaintenanceTimeBudgetMs() {
+        return configData.maintenanceTimeBudgetMs;
+    }
+
+    public static int getMaintenanceBatchSize() {
+        return configData.maintenanceBatchSize;
+    }
+
+    public static int getNotificationRetentionDays() {
+        return configData.notificationRetentionDays;
+    }
+
+    public static int getTradeRetentionDays() {
+        return configData.tradeRetentionDays;
+    }
+
+    public static int getPayoutIntervalMinutes() {
+        return configData.payoutIntervalMinutes;
+    }
+
+    public static int getMetricsIntervalSeconds() {
+        return configData.metricsIntervalSeconds;
+    }
+
+    public static int getSlowOperationThresholdMs() {
+        return configData.slowOperationThresholdMs;
+    }
+
+    public static int getSlowLogMaxSizeKb() {
+        return configData.slowLogMaxSizeKb;
+    }
+
+    public static int getSlowLogBackups() {
+        return configData.slowLogBackups;
+    }
+
+    public static int getTickBudgetMs() {
+        return configData.tickBudgetMs;
+    }
+
+    public static int getTickWindowTicks() {
+        return configData.tickWindowTicks;
+    }
+
+    public static int getFindResultCount() {
+        return configData.findResultCount;
+    }
+
     public static Path getConfigDir() {
         return configDir;
     }
@@ -0,0 +1,152 @@
+package com.iruanp.simpleshop;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic housekeeping for the shop database: notification and trade
+ * ledger retention in bounded batches, incremental vacuum, WAL checkpoints
+ * and a daily ANALYZE. Runs on its own thread; the statements themselves go
+ * through the writer so they never race with regular writes. Each run stops
+ * starting new steps once its time budget is spent.
+ */
+public class DatabaseMaintenance {
+    private static final long INITIAL_DELAY_MINUTES = 5;
+    private static final int VACUUM_PAGES_PER_RUN = 1000;
+    private static final long ANALYZE_INTERVAL_MS = TimeUnit.HOURS.toMillis(24);
+    // Conservative VACUUM speed, used to tell whether a conversion fits in the time budget
+    private static final long VACUUM_BYTES_PER_MS = 10_000;
+
+    public enum VacuumConversion {
+        ALREADY_INCREMENTAL,
+        CONVERTED,
+        OVER_BUDGET,
+        FAILED
+    }
+
+    public static class Report {
+        public final long startedAt;
+        public long durationMs;
+        public int notificationsDeleted;
+        public int tradesDeleted;
+        public int pagesFreed;
+        public int walFrames;
+        public int walCheckpointed;
+        public boolean analyzed;
+        public boolean budgetExceeded;
+        public String error;
+
+        Report(long startedAt) {
+            this.startedAt = startedAt;
+        }
+    }
+
+    private final ShopDatabase database;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SimpleShop-Maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Report lastReport;
+    private long lastAnalyzeAt;
+
+    public DatabaseMaintenance(ShopDatabase database) {
+        this.database = database;
+    }
+
+    public void start() {
+        long interval = Math.max(1, Config.getMaintenanceIntervalMinutes());
+        scheduler.scheduleWithFixedDelay(this::run, INITIAL_DELAY_MINUTES, interval, TimeUnit.MINUTES);
+    }
+
+    public CompletableFuture<Report> runNow() {
+        return CompletableFuture.supplyAsync(this::run, scheduler);
+    }
+
+    /**
+     * Converts a database created before incremental auto-vacuum. The full
+     * VACUUM this takes holds up every other write until the file has been
+     * rewritten, so it only runs when an admin asks for it, and is skipped
+     * if the file is too large to rewrite within the time budget.
+     */
+    public CompletableFuture<VacuumConversion> convertToIncrementalVacuum() {
+        return CompletableFuture.supplyAsync(() -> {
+            if (database.isIncrementalVacuum()) {
+                return VacuumConversion.ALREADY_INCREMENTAL;
+            }
+            long size = database.getDatabaseSize();
+            if (size < 0 || size / VACUUM_BYTES_PER_MS > Config.getMaintenanceTimeBudgetMs()) {
+                Simpleshop.LOGGER.warn("Not converting the {} byte shop database to incremental auto-vacuum; it does not fit in the {} ms time budget",
+                        size, Config.getMaintenanceTimeBudgetMs());
+                return VacuumConversion.OVER_BUDGET;
+            }
+            try {
+                if (database.enableIncrementalVacuum().join()) {
+                    Simpleshop.LOGGER.info("Converted shop database to incremental auto-vacuum");
+                }
+                return VacuumConversion.CONVERTED;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                return VacuumConversion.FAILED;
+            }
+        }, scheduler);
+    }
+
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private Report run() {
+        long start = System.currentTimeMillis();
+        long deadline = start + Config.getMaintenanceTimeBudgetMs();
+        Report report = new Report(start);
+        try {
+            int batchSize = Math.max(1, Config.getMaintenanceBatchSize());
+            int retentionDays = Config.getNotificationRetentionDays();
+            int deleted;
+            do {
+                deleted = database.cleanOldNotifications(retentionDays, batchSize).join();
+                report.notificationsDeleted += deleted;
+            } while (deleted == batchSize && System.currentTimeMillis() < deadline);
+
+            int tradeRetentionDays = Config.getTradeRetentionDays();
+            if (tradeRetentionDays > 0) {
+                do {
+                    deleted = database.cleanOldTrades(tradeRetentionDays, batchSize).join();
+                    report.tradesDeleted += deleted;
+                } while (deleted == batchSize && System.currentTimeMillis() < deadline);
+            }
+
+            if (System.currentTimeMillis() < deadline) {
+                report.pagesFreed = database.incrementalVacuum(VACUUM_PAGES_PER_RUN).join();
+            }
+
+            // Passive, so it never waits for readers; it still runs when over budget to keep the WAL bounded
+            int[] checkpoint = database.checkpoint().join();
+            report.walFrames = checkpoint[0];
+            report.walCheckpointed = checkpoint[1];
+
+            if (start - lastAnalyzeAt >= ANALYZE_INTERVAL_MS && System.currentTimeMillis() < deadline) {
+                database.analyze().join();
+                lastAnalyzeAt = start;
+                report.analyzed = true;
+            }
+            report.budgetExceeded = System.currentTimeMillis() >= deadline;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            report.error = e.getMessage();
+        }
+
+        report.durationMs = System.currentTimeMillis() - start;
+        lastReport = report;
+        Simpleshop.LOGGER.info("Database maintenance took {} ms: {} notifications and {} trades deleted, {} pages freed, WAL {}/{} frames checkpointed",
+                report.durationMs, report.notificationsDeleted, report.tradesDeleted, report.pagesFreed, report.walCheckpointed, report.walFrames);
+        return report;
+    }
+}
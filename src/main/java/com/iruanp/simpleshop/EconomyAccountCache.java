@@ -0,0 +1,86 @@
+package com.iruanp.simpleshop;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.mojang.authlib.GameProfile;
+
+import eu.pb4.common.economy.api.CommonEconomy;
+import eu.pb4.common.economy.api.EconomyAccount;
+import eu.pb4.common.economy.api.EconomyCurrency;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+/**
+ * Economy accounts in the shop currency, resolved once per player UUID and
+ * then reused by trades, checkout and the dialogs that show a maximum
+ * amount. A player's entry is dropped when they join or leave, and the whole
+ * cache when the currency is resolved again.
+ */
+public class EconomyAccountCache {
+    private final MinecraftServer server;
+    private final Map<UUID, EconomyAccount> accounts = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile EconomyCurrency currency;
+
+    public EconomyAccountCache(MinecraftServer server) {
+        this.server = server;
+    }
+
+    public void setCurrency(EconomyCurrency currency) {
+        this.currency = currency;
+        accounts.clear();
+    }
+
+    public EconomyAccount get(ServerPlayerEntity player) {
+        return get(player.getUuid(), currency -> CommonEconomy.getAccounts(player, currency));
+    }
+
+    /**
+     * Resolves the account of a player who may be offline, such as the
+     * creator of a listing.
+     */
+    public EconomyAccount get(UUID uuid) {
+        return get(uuid, currency -> CommonEconomy.getAccounts(server, new GameProfile(uuid, ""), currency));
+    }
+
+    public void invalidate(UUID uuid) {
+        accounts.remove(uuid);
+    }
+
+    public void clear() {
+        accounts.clear();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    private EconomyAccount get(UUID uuid, Function<EconomyCurrency, Collection<EconomyAccount>> lookup) {
+        EconomyCurrency current = currency;
+        if (current == null) {
+            return null;
+        }
+        EconomyAccount account = accounts.get(uuid);
+        if (account != null) {
+            hits.increment();
+            return account;
+        }
+        misses.increment();
+
+        Collection<EconomyAccount> found = lookup.apply(current);
+        account = found.isEmpty() ? null : found.iterator().next();
+        // Misses are not cached; the provider may create the account later
+        if (account != null && current == currency) {
+            accounts.put(uuid, account);
+        }
+        return account;
+    }
+}
@@ -93,6 +93,10 @@ public class I18n {
         return translate(key, args).formatted(formatting);
     }
 
+    public static String getLanguage() {
+        return currentLanguage;
+    }
+
     public static void setLanguage(String language) {
         if (translations.containsKey(language)) {
             currentLanguage = language;
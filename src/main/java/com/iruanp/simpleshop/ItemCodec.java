@@ -0,0 +1,98 @@
+package com.iruanp.simpleshop;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.mojang.datafixers.util.Pair;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtSizeTracker;
+import net.minecraft.util.Identifier;
+
+/**
+ * Converts listing items to and from their stored forms: gzip-compressed
+ * binary NBT (current) and the JSON text written by older versions.
+ */
+public class ItemCodec {
+    public static byte[] encode(ItemStack itemStack) {
+        if (itemStack.isEmpty()) {
+            return null;
+        }
+        NbtCompound nbt = ItemStack.CODEC.encodeStart(Simpleshop.nbtops, itemStack)
+                .result()
+                .filter(NbtCompound.class::isInstance)
+                .map(NbtCompound.class::cast)
+                .orElse(null);
+        if (nbt == null) {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            NbtIo.writeCompressed(nbt, out);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    public static ItemStack decode(byte[] blob) {
+        try {
+            NbtCompound nbt = NbtIo.readCompressed(new ByteArrayInputStream(blob), NbtSizeTracker.ofUnlimitedBytes());
+            return ItemStack.CODEC.parse(Simpleshop.nbtops, nbt)
+                    .result()
+                    .orElse(ItemStack.EMPTY);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ItemStack.EMPTY;
+        }
+    }
+
+    public static ItemStack decodeJson(String nbtData) {
+        if (nbtData == null) {
+            return ItemStack.EMPTY;
+        }
+        return ItemStack.CODEC.decode(Simpleshop.jsonops, JsonParser.parseString(nbtData))
+                .result()
+                .map(Pair::getFirst)
+                .orElse(ItemStack.EMPTY);
+    }
+
+    /**
+     * Reads only the item id of a stored listing, such as "minecraft:diamond",
+     * without decoding its components or touching the registries.
+     */
+    public static String readItemId(byte[] blob, String nbtData) {
+        try {
+            String id;
+            if (blob != null) {
+                NbtCompound nbt = NbtIo.readCompressed(new ByteArrayInputStream(blob), NbtSizeTracker.ofUnlimitedBytes());
+                id = nbt.getString("id");
+            } else if (nbtData != null) {
+                JsonElement json = JsonParser.parseString(nbtData);
+                JsonElement idElement = json.isJsonObject() ? json.getAsJsonObject().get("id") : null;
+                id = idElement != null ? idElement.getAsString() : null;
+            } else {
+                return null;
+            }
+            Identifier identifier = id != null ? Identifier.tryParse(id) : null;
+            return identifier != null ? identifier.toString() : null;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Decodes whichever form the row holds, preferring the binary one.
+     */
+    public static ItemStack decode(byte[] blob, String nbtData) {
+        return blob != null ? decode(blob) : decodeJson(nbtData);
+    }
+}
@@ -0,0 +1,262 @@
+package com.iruanp.simpleshop;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import net.minecraft.item.ItemStack;
+
+/**
+ * Bounded cache of decoded listing templates keyed by item id. Capacity is
+ * measured in estimated serialized bytes rather than entry count, because a
+ * written book costs far more than a stack of dirt.
+ *
+ * Eviction follows W-TinyLFU: new entries land in a small LRU window, and an
+ * entry leaving the window only displaces the main region's LRU victim when a
+ * count-min sketch says it has been requested more often. The main region is
+ * a segmented LRU (probation + protected).
+ *
+ * Callers always receive a copy, so the cached template can never be mutated.
+ */
+public class ItemStackCache {
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private static class Entry {
+        final int itemId;
+        final ItemStack stack;
+        final int weight;
+
+        Entry(int itemId, ItemStack stack, int weight) {
+            this.itemId = itemId;
+            this.stack = stack;
+            this.weight = weight;
+        }
+    }
+
+    private final long maxWeight;
+    private final long windowMaxWeight;
+    private final long protectedMaxWeight;
+
+    private final LinkedHashMap<Integer, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, Entry> protectedRegion = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowWeight;
+    private long probationWeight;
+    private long protectedWeight;
+
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ItemStackCache(long maxWeight) {
+        this.maxWeight = Math.max(1, maxWeight);
+        this.windowMaxWeight = Math.max(1, this.maxWeight * WINDOW_PERCENT / 100);
+        this.protectedMaxWeight = (this.maxWeight - windowMaxWeight) * PROTECTED_PERCENT / 100;
+    }
+
+    /**
+     * Returns a copy of the cached stack for the item, decoding it with the
+     * given supplier on a miss. The weight is the item's stored size in bytes.
+     */
+    public ItemStack get(int itemId, int weight, Supplier<ItemStack> decoder) {
+        ItemStack cached = lookup(itemId);
+        if (cached != null) {
+            hits.increment();
+            return cached.copy();
+        }
+
+        misses.increment();
+        ItemStack decoded = decoder.get();
+        if (!decoded.isEmpty()) {
+            insert(itemId, decoded, Math.max(1, weight));
+        }
+        return decoded.copy();
+    }
+
+    public synchronized void invalidate(int itemId) {
+        Entry entry;
+        if ((entry = window.remove(itemId)) != null) {
+            windowWeight -= entry.weight;
+        } else if ((entry = probation.remove(itemId)) != null) {
+            probationWeight -= entry.weight;
+        } else if ((entry = protectedRegion.remove(itemId)) != null) {
+            protectedWeight -= entry.weight;
+        }
+    }
+
+    public synchronized void clear() {
+        window.clear();
+        probation.clear();
+        protectedRegion.clear();
+        windowWeight = 0;
+        probationWeight = 0;
+        protectedWeight = 0;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public synchronized long getWeight() {
+        return windowWeight + probationWeight + protectedWeight;
+    }
+
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedRegion.size();
+    }
+
+    private synchronized ItemStack lookup(int itemId) {
+        sketch.increment(itemId);
+
+        Entry entry = window.get(itemId);
+        if (entry != null) {
+            return entry.stack;
+        }
+
+        entry = probation.remove(itemId);
+        if (entry != null) {
+            // Second hit while on probation earns a place in the protected segment
+            probationWeight -= entry.weight;
+            protectedRegion.put(itemId, entry);
+            protectedWeight += entry.weight;
+            demoteProtectedOverflow();
+            return entry.stack;
+        }
+
+        entry = protectedRegion.get(itemId);
+        return entry != null ? entry.stack : null;
+    }
+
+    private synchronized void insert(int itemId, ItemStack stack, int weight) {
+        if (weight > maxWeight || window.containsKey(itemId)
+                || probation.containsKey(itemId) || protectedRegion.containsKey(itemId)) {
+            return;
+        }
+
+        window.put(itemId, new Entry(itemId, stack.copy(), weight));
+        windowWeight += weight;
+
+        while (windowWeight > windowMaxWeight && !window.isEmpty()) {
+            Iterator<Entry> it = window.values().iterator();
+            Entry candidate = it.next();
+            it.remove();
+            windowWeight -= candidate.weight;
+            admitToMain(candidate);
+        }
+    }
+
+    private void admitToMain(Entry candidate) {
+        long mainMaxWeight = maxWeight - windowMaxWeight;
+        while (probationWeight + protectedWeight + candidate.weight > mainMaxWeight) {
+            Entry victim = firstEntry(probation);
+            if (victim == null) {
+                victim = firstEntry(protectedRegion);
+                if (victim == null) {
+                    evictions.increment();
+                    return;
+                }
+            }
+
+            if (sketch.frequency(candidate.itemId) <= sketch.frequency(victim.itemId)) {
+                // The incumbent is at least as popular, drop the newcomer
+                evictions.increment();
+                return;
+            }
+
+            if (probation.remove(victim.itemId) != null) {
+                probationWeight -= victim.weight;
+            } else {
+                protectedRegion.remove(victim.itemId);
+                protectedWeight -= victim.weight;
+            }
+            evictions.increment();
+        }
+
+        probation.put(candidate.itemId, candidate);
+        probationWeight += candidate.weight;
+    }
+
+    private void demoteProtectedOverflow() {
+        while (protectedWeight > protectedMaxWeight && !protectedRegion.isEmpty()) {
+            Iterator<Entry> it = protectedRegion.values().iterator();
+            Entry demoted = it.next();
+            it.remove();
+            protectedWeight -= demoted.weight;
+            probation.put(demoted.itemId, demoted);
+            probationWeight += demoted.weight;
+        }
+    }
+
+    private static Entry firstEntry(Map<Integer, Entry> region) {
+        Iterator<Entry> it = region.values().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters with periodic halving so that old
+     * popularity fades out.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int WIDTH = 1 << 12;
+        private static final int SAMPLE_SIZE = WIDTH * 10;
+        private static final int[] SEEDS = { 0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+
+        private final byte[][] table = new byte[DEPTH][WIDTH];
+        private int additions;
+
+        void increment(int key) {
+            for (int i = 0; i < DEPTH; i++) {
+                int index = indexOf(key, i);
+                if (table[i][index] < 15) {
+                    table[i][index]++;
+                }
+            }
+            if (++additions >= SAMPLE_SIZE) {
+                reset();
+            }
+        }
+
+        int frequency(int key) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][indexOf(key, i)]);
+            }
+            return min;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private static int indexOf(int key, int row) {
+            int h = key * SEEDS[row];
+            h ^= h >>> 16;
+            return h & (WIDTH - 1);
+        }
+    }
+}
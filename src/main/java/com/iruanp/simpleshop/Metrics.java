@@ -0,0 +1,163 @@
+package com.iruanp.simpleshop;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Latency timers and gauges for the mod's own work, shown by /shop stats and
+ * written out by {@link MetricsReporter}. Recording never locks: a timer
+ * counts into a log-linear histogram (HdrHistogram's bucket layout, 16 sub
+ * buckets per power of two, so percentiles are within about 6%). Timings
+ * taken on the server thread are also reported to {@link ShopWatchdog}.
+ */
+public final class Metrics {
+    public static class Timer {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Timer(String name) {
+            this.name = name;
+        }
+
+        public void recordSince(long startNanos) {
+            recordSince(startNanos, null);
+        }
+
+        /**
+         * Records an operation that ran the given SQL, which the watchdog logs
+         * if the operation was slow.
+         */
+        public void recordSince(long startNanos, String sql) {
+            long end = System.nanoTime();
+            record(end - startNanos);
+            ShopWatchdog.recorded(name, sql, startNanos, end);
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) {
+                return;
+            }
+            buckets.incrementAndGet(bucketOf(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+            if (nanos > maxNanos.get()) {
+                maxNanos.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        public Snapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            return new Snapshot(total, totalNanos.sum(), percentile(counts, total, 0.50),
+                    percentile(counts, total, 0.99), maxNanos.get());
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long valueOf(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            long lower = (SUB_BUCKETS + sub) << (magnitude - SUB_BUCKET_BITS);
+            // Middle of the bucket
+            return lower + (1L << (magnitude - SUB_BUCKET_BITS)) / 2;
+        }
+
+        private static long percentile(long[] counts, long total, double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * quantile));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return valueOf(i);
+                }
+            }
+            return valueOf(counts.length - 1);
+        }
+    }
+
+    public static class Snapshot {
+        public final long count;
+        public final long totalNanos;
+        public final long p50Nanos;
+        public final long p99Nanos;
+        public final long maxNanos;
+
+        Snapshot(long count, long totalNanos, long p50Nanos, long p99Nanos, long maxNanos) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+    }
+
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final Map<String, DoubleSupplier> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static Timer timer(String name) {
+        return timers.computeIfAbsent(name, key -> new Timer(key));
+    }
+
+    /**
+     * Registers a value that is read when stats are shown, such as a queue
+     * depth or a cache hit rate. Registering the same name again replaces it.
+     */
+    public static void gauge(String name, DoubleSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public static Map<String, Snapshot> snapshotTimers() {
+        Map<String, Snapshot> snapshots = new TreeMap<>();
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            Snapshot snapshot = entry.getValue().snapshot();
+            if (snapshot.count > 0) {
+                snapshots.put(entry.getKey(), snapshot);
+            }
+        }
+        return snapshots;
+    }
+
+    public static Map<String, Double> readGauges() {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, DoubleSupplier> entry : gauges.entrySet()) {
+            try {
+                values.put(entry.getKey(), entry.getValue().getAsDouble());
+            } catch (RuntimeException e) {
+                // A gauge whose owner has shut down; leave it out
+            }
+        }
+        return values;
+    }
+}
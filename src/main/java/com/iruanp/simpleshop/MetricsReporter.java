@@ -0,0 +1,85 @@
+package com.iruanp.simpleshop;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * Periodically writes the current {@link Metrics} to metrics.json in the
+ * config directory, so they can be collected without running /shop stats.
+ * The file is replaced atomically.
+ */
+public class MetricsReporter {
+    private static final String METRICS_FILENAME = "metrics.json";
+
+    private final Path file;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SimpleShop-Metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MetricsReporter(Path configDir) {
+        this.file = configDir.resolve(METRICS_FILENAME);
+    }
+
+    public void start() {
+        int interval = Config.getMetricsIntervalSeconds();
+        if (interval > 0) {
+            scheduler.scheduleWithFixedDelay(this::write, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        if (Config.getMetricsIntervalSeconds() > 0) {
+            write();
+        }
+    }
+
+    private void write() {
+        JsonObject root = new JsonObject();
+        root.addProperty("timestamp", System.currentTimeMillis());
+
+        JsonObject timers = new JsonObject();
+        for (Map.Entry<String, Metrics.Snapshot> entry : Metrics.snapshotTimers().entrySet()) {
+            Metrics.Snapshot snapshot = entry.getValue();
+            JsonObject timer = new JsonObject();
+            timer.addProperty("count", snapshot.count);
+            timer.addProperty("totalMs", snapshot.totalNanos / 1_000_000.0);
+            timer.addProperty("p50Us", snapshot.p50Nanos / 1_000.0);
+            timer.addProperty("p99Us", snapshot.p99Nanos / 1_000.0);
+            timer.addProperty("maxUs", snapshot.maxNanos / 1_000.0);
+            timers.add(entry.getKey(), timer);
+        }
+        root.add("timers", timers);
+
+        JsonObject gauges = new JsonObject();
+        for (Map.Entry<String, Double> entry : Metrics.readGauges().entrySet()) {
+            gauges.addProperty(entry.getKey(), entry.getValue());
+        }
+        root.add("gauges", gauges);
+
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        Path temp = file.resolveSibling(METRICS_FILENAME + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                gson.toJson(root, writer);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Simpleshop.LOGGER.error("Failed to write metrics file", e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.iruanp.simpleshop;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * Converts listings still stored as JSON text into compressed binary NBT.
+ * Runs once per start on a background thread; each batch is handed to the
+ * server thread and written in a single transaction. Rows that fail to decode
+ * are left untouched.
+ */
+public class NbtStorageMigrator {
+    private static final int BATCH_SIZE = 200;
+    private static final int SAMPLE_SIZE = 100;
+
+    private final ShopDatabase database;
+    private final MinecraftServer server;
+
+    public NbtStorageMigrator(ShopDatabase database, MinecraftServer server) {
+        this.database = database;
+        this.server = server;
+    }
+
+    public void start() {
+        List<ShopCatalog.ItemRecord> pending = new ArrayList<>();
+        for (ShopCatalog.ItemRecord item : database.getCatalog().getItems()) {
+            if (item.nbtBlob == null && item.nbtData != null) {
+                pending.add(item);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Thread thread = new Thread(() -> convert(pending), "SimpleShop-NbtMigrator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void convert(List<ShopCatalog.ItemRecord> pending) {
+        long jsonBytes = 0;
+        long blobBytes = 0;
+        int converted = 0;
+        int failed = 0;
+        List<String> jsonSample = new ArrayList<>();
+        List<byte[]> blobSample = new ArrayList<>();
+
+        Map<Integer, byte[]> batch = new LinkedHashMap<>();
+        for (ShopCatalog.ItemRecord item : pending) {
+            String nbtData = item.nbtData;
+            if (nbtData == null) {
+                continue;
+            }
+
+            byte[] blob;
+            try {
+                ItemStack itemStack = ItemCodec.decodeJson(nbtData);
+                blob = ItemCodec.encode(itemStack);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                blob = null;
+            }
+            if (blob == null) {
+                failed++;
+                continue;
+            }
+
+            jsonBytes += nbtData.length();
+            blobBytes += blob.length;
+            converted++;
+            if (jsonSample.size() < SAMPLE_SIZE) {
+                jsonSample.add(nbtData);
+                blobSample.add(blob);
+            }
+
+            batch.put(item.id, blob);
+            if (batch.size() >= BATCH_SIZE) {
+                submit(batch);
+                batch = new LinkedHashMap<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            submit(batch);
+        }
+
+        Simpleshop.LOGGER.info("Converted {} listings to binary NBT ({} failed): {} bytes as JSON, {} bytes as NBT",
+                converted, failed, jsonBytes, blobBytes);
+        if (!jsonSample.isEmpty()) {
+            Simpleshop.LOGGER.info("Average decode time: JSON {} us, NBT {} us",
+                    averageMicros(jsonSample, ItemCodec::decodeJson),
+                    averageMicros(blobSample, ItemCodec::decode));
+        }
+    }
+
+    private void submit(Map<Integer, byte[]> batch) {
+        server.execute(() -> {
+            if (Simpleshop.shopDatabase == database) {
+                database.storeItemBlobs(batch);
+            }
+        });
+    }
+
+    private static <T> long averageMicros(List<T> samples, Function<T, ItemStack> decoder) {
+        long start = System.nanoTime();
+        for (T sample : samples) {
+            decoder.apply(sample);
+        }
+        return (System.nanoTime() - start) / samples.size() / 1000;
+    }
+}
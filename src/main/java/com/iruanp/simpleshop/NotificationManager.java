@@ -1,41 +1,276 @@
 package com.iruanp.simpleshop;
 
+import net.minecraft.item.ItemStack;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.text.Text;
 import net.minecraft.util.Formatting;
 import net.minecraft.server.MinecraftServer;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers shop notifications. Online players get them right away; messages
+ * for offline players are buffered and written in one batch every few
+ * seconds. Repeated trades by the same player on the same listing are
+ * coalesced into a single digest line that keeps being updated while the
+ * trades continue. A digest that sees no new trade for a whole flush
+ * interval after being written is dropped from memory; a later trade starts
+ * a new line.
+ */
 public class NotificationManager {
+    private static final long FLUSH_INTERVAL_SECONDS = 30;
+
+    private static class Digest {
+        final String key;
+        final String ownerName;
+        final String digestKey;
+        final String actorName;
+        final boolean bought;
+        final String itemName;
+        final String shopName;
+        int quantity;
+        int events;
+        boolean dirty;
+
+        Digest(String key, String ownerName, String digestKey, String actorName, boolean bought, String itemName, String shopName) {
+            this.key = key;
+            this.ownerName = ownerName;
+            this.digestKey = digestKey;
+            this.actorName = actorName;
+            this.bought = bought;
+            this.itemName = itemName;
+            this.shopName = shopName;
+        }
+
+        String render() {
+            if (events == 1) {
+                return I18n.translate(bought ? "notification.item.bought" : "notification.item.sold",
+                        actorName, quantity, shopName).getString();
+            }
+            return I18n.translate(bought ? "notification.item.bought.digest" : "notification.item.sold.digest",
+                    actorName, quantity, itemName, shopName, events).getString();
+        }
+    }
+
     private final ShopDatabase database;
     private final MinecraftServer server;
+    private final List<ShopDatabase.PendingNotification> pendingMessages = new ArrayList<>();
+    private final Map<String, Digest> digests = new LinkedHashMap<>();
+    // Everyone with unread notifications, stored or buffered; everyone else skips the database on join
+    private final Set<String> pendingPlayers = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SimpleShop-Notifications");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public NotificationManager(ShopDatabase database, MinecraftServer server) {
         this.database = database;
         this.server = server;
+        pendingPlayers.addAll(database.getPlayersWithUnreadNotifications());
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
 
     public void notifyPlayer(String playerName, String message) {
         // Try to find online player
         ServerPlayerEntity player = server.getPlayerManager().getPlayer(playerName);
-        
+
         if (player != null && (!player.isDisconnected())) {
             // Player is online, send message directly
             player.sendMessage(Text.literal(message).formatted(Formatting.YELLOW), false);
         } else {
-            // Player is offline, save notification to database
-            database.addNotification(playerName, message);
+            // Player is offline, queue the notification for the next batch
+            pendingPlayers.add(playerName);
+            synchronized (this) {
+                pendingMessages.add(new ShopDatabase.PendingNotification(playerName, message, null));
+            }
         }
     }
 
+    /**
+     * Tells a player that a trade of theirs was undone in the shop because it
+     * could not be stored. May be called from any thread.
+     */
+    public void notifyTradeFailed(String playerUuid) {
+        server.execute(() -> {
+            String playerName = PlayerUtils.getPlayerName(UUID.fromString(playerUuid));
+            if (playerName != null) {
+                notifyPlayer(playerName, I18n.translate("notification.trade.failed").getString());
+            }
+        });
+    }
+
+    /**
+     * Tells a listing owner that someone bought from or sold to their shop.
+     * While the owner is offline, trades by the same player on the same
+     * listing add up into one digest.
+     */
+    public void notifyTrade(String ownerName, String actorName, boolean bought, int itemId, String shopName, int quantity) {
+        ServerPlayerEntity owner = server.getPlayerManager().getPlayer(ownerName);
+        if (owner != null && !owner.isDisconnected()) {
+            owner.sendMessage(I18n.translate(bought ? "notification.item.bought" : "notification.item.sold",
+                    actorName, quantity, shopName).formatted(Formatting.YELLOW), false);
+            return;
+        }
+
+        pendingPlayers.add(ownerName);
+        String key = ownerName + "|" + actorName + "|" + (bought ? "buy" : "sell") + "|" + itemId + "|" + shopName;
+        synchronized (this) {
+            Digest digest = digests.get(key);
+            if (digest == null) {
+                ItemStack itemStack = database.getItemStack(itemId);
+                String itemName = itemStack != null ? itemStack.getName().getString() : "#" + itemId;
+                // The timestamp keeps a digest from a previous run from being overwritten with smaller totals
+                digest = new Digest(key, ownerName, key + "|" + System.currentTimeMillis(), actorName, bought, itemName, shopName);
+                digests.put(key, digest);
+            }
+            digest.quantity += quantity;
+            digest.events++;
+            digest.dirty = true;
+        }
+    }
+
+    /**
+     * Writes everything buffered so far in one transaction.
+     */
+    public CompletableFuture<Void> flush() {
+        return flush(null);
+    }
+
+    private CompletableFuture<Void> flush(String onlyPlayer) {
+        List<ShopDatabase.PendingNotification> batch = new ArrayList<>();
+        List<Digest> flushedDigests = new ArrayList<>();
+        synchronized (this) {
+            Iterator<ShopDatabase.PendingNotification> messages = pendingMessages.iterator();
+            while (messages.hasNext()) {
+                ShopDatabase.PendingNotification message = messages.next();
+                if (onlyPlayer == null || onlyPlayer.equals(message.playerName)) {
+                    batch.add(message);
+                    messages.remove();
+                }
+            }
+            Iterator<Digest> entries = digests.values().iterator();
+            while (entries.hasNext()) {
+                Digest digest = entries.next();
+                if (onlyPlayer != null && !onlyPlayer.equals(digest.ownerName)) {
+                    continue;
+                }
+                if (digest.dirty) {
+                    batch.add(new ShopDatabase.PendingNotification(digest.ownerName, digest.render(), digest.digestKey));
+                    flushedDigests.add(digest);
+                    digest.dirty = false;
+                } else if (onlyPlayer == null) {
+                    // Already written and idle since the last flush
+                    entries.remove();
+                }
+            }
+        }
+        if (batch.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return database.addNotifications(batch).whenComplete((ignored, error) -> {
+            if (error == null) {
+                return;
+            }
+            // Put everything back so the next flush tries again
+            synchronized (this) {
+                for (ShopDatabase.PendingNotification message : batch) {
+                    if (message.digestKey == null) {
+                        pendingMessages.add(message);
+                    }
+                }
+                for (Digest digest : flushedDigests) {
+                    digest.dirty = true;
+                    digests.putIfAbsent(digest.key, digest);
+                }
+            }
+        });
+    }
+
+    public synchronized int getBufferedCount() {
+        int dirtyDigests = 0;
+        for (Digest digest : digests.values()) {
+            if (digest.dirty) {
+                dirtyDigests++;
+            }
+        }
+        return pendingMessages.size() + dirtyDigests;
+    }
+
     public void checkNotifications(ServerPlayerEntity player) {
         String playerName = player.getName().getString();
-        for (String message : database.getUnreadNotifications(playerName)) {
+        if (!pendingPlayers.contains(playerName)) {
+            return;
+        }
+
+        // Anything still buffered for this player is written first so it is replayed with the rest;
+        // the read happens off the server thread and delivery on a later tick
+        flush(playerName)
+                .handleAsync((ignored, error) -> database.getUnreadNotifications(playerName), flusher)
+                .thenAcceptAsync(rows -> deliver(player, playerName, rows), server);
+    }
+
+    /**
+     * Shows the rows read for a joining player and marks exactly those as
+     * read. Anything written or buffered for them since the read is kept for
+     * their next join.
+     */
+    private void deliver(ServerPlayerEntity player, String playerName, List<ShopDatabase.UnreadNotification> rows) {
+        List<String> messages = new ArrayList<>(rows.size());
+        long maxId = 0;
+        boolean buffered = false;
+        synchronized (this) {
+            for (ShopDatabase.UnreadNotification row : rows) {
+                String message = row.message;
+                Iterator<Digest> entries = digests.values().iterator();
+                while (row.digestKey != null && entries.hasNext()) {
+                    Digest digest = entries.next();
+                    if (digest.digestKey.equals(row.digestKey)) {
+                        // The digest may have grown since its row was read, so show its current total
+                        message = digest.render();
+                        entries.remove();
+                        break;
+                    }
+                }
+                messages.add(message);
+                maxId = Math.max(maxId, row.id);
+            }
+            for (ShopDatabase.PendingNotification message : pendingMessages) {
+                buffered |= message.playerName.equals(playerName);
+            }
+            for (Digest digest : digests.values()) {
+                buffered |= digest.ownerName.equals(playerName);
+            }
+        }
+
+        for (String message : messages) {
             player.sendMessage(Text.literal(message).formatted(Formatting.YELLOW), false);
         }
-        database.markNotificationsAsRead(playerName);
+        if (maxId > 0) {
+            database.markNotificationsAsRead(playerName, maxId);
+        }
+        if (!buffered) {
+            pendingPlayers.remove(playerName);
+        }
     }
 
-    public void cleanOldNotifications() {
-        database.cleanOldNotifications();
+    /**
+     * Stops the timer and writes whatever is still buffered. Must run before
+     * the database is closed.
+     */
+    public void shutdown() {
+        flusher.shutdownNow();
+        flush();
     }
-} 
\ No newline at end of file
+}
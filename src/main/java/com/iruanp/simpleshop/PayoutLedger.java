@@ -0,0 +1,137 @@
+package com.iruanp.simpleshop;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import eu.pb4.common.economy.api.EconomyAccount;
+import eu.pb4.common.economy.api.EconomyTransaction;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.Formatting;
+
+/**
+ * Pays listing owners for purchases. Online owners are credited right away;
+ * for offline owners each purchase is appended to the payouts table and a
+ * background settler credits the summed amount once per interval, so the
+ * economy provider loads an offline player's data once per settlement
+ * instead of once per sale. Owners are also settled when they join.
+ *
+ * The ledger rows are deleted before the account is credited, so a
+ * settlement is never paid twice. If the credit fails the amount goes back
+ * into the ledger.
+ */
+public class PayoutLedger {
+    private final ShopDatabase database;
+    private final MinecraftServer server;
+    private final EconomyAccountCache accounts;
+    // Sellers with rows in the ledger; everyone else is skipped by the settler
+    private final Set<String> pendingSellers = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService settler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SimpleShop-Payouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PayoutLedger(ShopDatabase database, MinecraftServer server, EconomyAccountCache accounts) {
+        this.database = database;
+        this.server = server;
+        this.accounts = accounts;
+    }
+
+    public void start() {
+        pendingSellers.addAll(database.getSellersWithPendingPayouts());
+        long interval = Math.max(1, Config.getPayoutIntervalMinutes());
+        settler.scheduleWithFixedDelay(this::settleAll, interval, interval, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Credits a listing owner for a sale, now if they are online and
+     * otherwise with the next settlement.
+     */
+    public void credit(String seller, long amount) {
+        if (amount <= 0) {
+            return;
+        }
+        ServerPlayerEntity player = server.getPlayerManager().getPlayer(UUID.fromString(seller));
+        if (player != null) {
+            EconomyAccount account = accounts.get(player);
+            if (account != null && account.increaseBalance(amount).isSuccessful()) {
+                return;
+            }
+        }
+        queue(seller, amount);
+    }
+
+    public void settle(ServerPlayerEntity player) {
+        String seller = player.getUuidAsString();
+        if (pendingSellers.contains(seller)) {
+            settler.execute(() -> settle(seller));
+        }
+    }
+
+    public CompletableFuture<ShopDatabase.PendingPayout> getPending(String seller) {
+        return CompletableFuture.supplyAsync(() -> database.getPendingPayout(seller), settler);
+    }
+
+    public List<String> getPendingSellers() {
+        return new ArrayList<>(pendingSellers);
+    }
+
+    public int getPendingSellerCount() {
+        return pendingSellers.size();
+    }
+
+    public void shutdown() {
+        settler.shutdownNow();
+    }
+
+    private void queue(String seller, long amount) {
+        // Marked only once the row is committed, so a settlement running meanwhile cannot drop the mark
+        database.addPayout(seller, amount).thenRun(() -> pendingSellers.add(seller));
+    }
+
+    private void settleAll() {
+        for (String seller : getPendingSellers()) {
+            settle(seller);
+        }
+    }
+
+    private void settle(String seller) {
+        pendingSellers.remove(seller);
+        ShopDatabase.PendingPayout pending = database.getPendingPayout(seller);
+        if (pending.sales == 0) {
+            return;
+        }
+
+        database.clearPayouts(seller, pending.lastId).whenComplete((ignored, error) -> {
+            if (error != null) {
+                // The rows are still there; mark the seller again so the next settlement retries
+                pendingSellers.add(seller);
+            }
+        }).thenRunAsync(() -> {
+            EconomyAccount account = accounts.get(UUID.fromString(seller));
+            EconomyTransaction result = account != null ? account.increaseBalance(pending.total) : null;
+            if (result == null || !result.isSuccessful()) {
+                Simpleshop.LOGGER.warn("Could not pay out {} to {}, keeping it for the next settlement", pending.total, seller);
+                queue(seller, pending.total);
+                return;
+            }
+
+            ServerPlayerEntity player = server.getPlayerManager().getPlayer(UUID.fromString(seller));
+            if (player != null) {
+                player.sendMessage(I18n.translate("payout.settled",
+                        Simpleshop.getInstance().formatCurrency(pending.total), pending.sales).formatted(Formatting.GREEN), false);
+            }
+        }, server).exceptionally(error -> {
+            error.printStackTrace();
+            return null;
+        });
+    }
+}
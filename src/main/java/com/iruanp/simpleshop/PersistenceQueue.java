@@ -0,0 +1,195 @@
+package com.iruanp.simpleshop;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single writer thread for the shop database. Queued writes are drained in
+ * batches and committed together in one transaction; each write runs inside
+ * its own savepoint so a failing statement does not take the rest of the
+ * batch down with it.
+ */
+public class PersistenceQueue {
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final Metrics.Timer COMMIT_TIMER = Metrics.timer("db.commitBatch");
+
+    @FunctionalInterface
+    public interface Write {
+        void apply(StatementCache statements) throws SQLException;
+    }
+
+    private static class PendingWrite {
+        final Write write;
+        final boolean exclusive;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingWrite(Write write, boolean exclusive) {
+            this.write = write;
+            this.exclusive = exclusive;
+        }
+    }
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final StatementCache statements;
+    private final Connection connection;
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    public PersistenceQueue(StatementCache statements) {
+        this.statements = statements;
+        this.connection = statements.getConnection();
+        this.writerThread = new Thread(this::run, "SimpleShop-Writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public CompletableFuture<Void> submit(Write write) {
+        return submit(write, false);
+    }
+
+    /**
+     * Queues a write that runs on its own in auto-commit mode, for statements
+     * such as VACUUM or a WAL checkpoint that cannot run inside a transaction.
+     */
+    public CompletableFuture<Void> submitExclusive(Write write) {
+        return submit(write, true);
+    }
+
+    private CompletableFuture<Void> submit(Write write, boolean exclusive) {
+        PendingWrite pending = new PendingWrite(write, exclusive);
+        if (!running) {
+            pending.future.completeExceptionally(new IllegalStateException("Persistence queue is shut down"));
+            return pending.future;
+        }
+        queue.add(pending);
+        return pending.future;
+    }
+
+    public int size() {
+        return queue.size();
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                process(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                // Never let the writer die; whatever was not completed is failed instead of left hanging
+                e.printStackTrace();
+                for (PendingWrite pending : batch) {
+                    pending.future.completeExceptionally(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void process(List<PendingWrite> batch) {
+        List<PendingWrite> transaction = new ArrayList<>(batch.size());
+        for (PendingWrite pending : batch) {
+            if (!pending.exclusive) {
+                transaction.add(pending);
+                continue;
+            }
+            if (!transaction.isEmpty()) {
+                commitBatch(transaction);
+                transaction.clear();
+            }
+            try {
+                pending.write.apply(statements);
+                pending.future.complete(null);
+            } catch (SQLException | RuntimeException e) {
+                e.printStackTrace();
+                pending.future.completeExceptionally(e);
+            }
+        }
+        if (!transaction.isEmpty()) {
+            commitBatch(transaction);
+        }
+    }
+
+    private void commitBatch(List<PendingWrite> batch) {
+        long start = System.nanoTime();
+        List<Throwable> failures = new ArrayList<>(batch.size());
+        try {
+            connection.setAutoCommit(false);
+            for (PendingWrite pending : batch) {
+                Savepoint savepoint = connection.setSavepoint();
+                try {
+                    pending.write.apply(statements);
+                    connection.releaseSavepoint(savepoint);
+                    failures.add(null);
+                } catch (SQLException | RuntimeException e) {
+                    e.printStackTrace();
+                    connection.rollback(savepoint);
+                    failures.add(e);
+                }
+            }
+            connection.commit();
+            COMMIT_TIMER.recordSince(start);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackError) {
+                rollbackError.printStackTrace();
+            }
+            for (PendingWrite pending : batch) {
+                pending.future.completeExceptionally(e);
+            }
+            return;
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Throwable failure = failures.get(i);
+            if (failure == null) {
+                batch.get(i).future.complete(null);
+            } else {
+                batch.get(i).future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting new writes and blocks until everything already queued
+     * has been committed.
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Anything that slipped in after the writer exited is rejected rather than left hanging
+        PendingWrite pending;
+        while ((pending = queue.poll()) != null) {
+            pending.future.completeExceptionally(new IllegalStateException("Persistence queue is shut down"));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.iruanp.simpleshop;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mojang.authlib.GameProfile;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+/**
+ * UUID to name lookups for listing creators. Online players are answered from
+ * the player list; everyone else goes through the server's user cache on a
+ * background thread and is remembered in a bounded LRU. Unknown UUIDs are
+ * remembered too, for a while, so a deleted profile is not looked up on every
+ * page open.
+ */
+public class PlayerNameCache {
+    private static final int MAX_ENTRIES = 2048;
+    private static final long NEGATIVE_TTL_MS = 5 * 60 * 1000;
+
+    private static class Entry {
+        final String name;
+        final long expiresAt;
+
+        Entry(String name, long expiresAt) {
+            this.name = name;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final MinecraftServer server;
+    private final Map<UUID, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final ExecutorService resolver = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SimpleShop-NameResolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PlayerNameCache(MinecraftServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Returns the name if it is known without a lookup, otherwise null.
+     */
+    public String getCached(UUID uuid) {
+        ServerPlayerEntity player = server.getPlayerManager().getPlayer(uuid);
+        if (player != null) {
+            hits.increment();
+            return player.getName().getString();
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(uuid);
+            (entry != null ? hits : misses).increment();
+            return entry != null ? entry.name : null;
+        }
+    }
+
+    /**
+     * Returns the name, looking it up on the calling thread if needed.
+     */
+    public String resolve(UUID uuid) {
+        String name = getCached(uuid);
+        if (name != null || !needsLookup(uuid)) {
+            return name;
+        }
+        return lookup(uuid);
+    }
+
+    /**
+     * Looks up every UUID that is not cached yet in one background pass. The
+     * returned future completes once they are all cached.
+     */
+    public CompletableFuture<Void> prefetch(Collection<UUID> uuids) {
+        List<UUID> missing = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            if (getCached(uuid) == null && needsLookup(uuid)) {
+                missing.add(uuid);
+            }
+        }
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> {
+            for (UUID uuid : missing) {
+                lookup(uuid);
+            }
+        }, resolver);
+    }
+
+    public void remember(UUID uuid, String name) {
+        synchronized (entries) {
+            entries.put(uuid, new Entry(name, Long.MAX_VALUE));
+        }
+    }
+
+    public void shutdown() {
+        resolver.shutdownNow();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    private boolean needsLookup(UUID uuid) {
+        synchronized (entries) {
+            Entry entry = entries.get(uuid);
+            return entry == null || (entry.name == null && entry.expiresAt < System.currentTimeMillis());
+        }
+    }
+
+    private String lookup(UUID uuid) {
+        GameProfile profile = server.getUserCache() != null
+                ? server.getUserCache().getByUuid(uuid).orElse(null)
+                : null;
+        String name = profile != null ? profile.getName() : null;
+        synchronized (entries) {
+            entries.put(uuid, new Entry(name, name != null ? Long.MAX_VALUE : System.currentTimeMillis() + NEGATIVE_TTL_MS));
+        }
+        return name;
+    }
+}
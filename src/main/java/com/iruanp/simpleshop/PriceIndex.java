@@ -0,0 +1,166 @@
+package com.iruanp.simpleshop;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Listings of each item type ordered by price, one set for selling listings
+ * and one for buying ones, so the cheapest offers and best buy-back prices
+ * for an item are the first few entries of a sorted set. Selling listings
+ * are only in the index while they have stock (or belong to an admin shop).
+ *
+ * {@link ShopDatabase} calls {@link #refresh} after every change to a
+ * listing's price, stock, mode or shop. The item type of each listing is
+ * read from its stored NBT once, in the background, when the index is built.
+ */
+public class PriceIndex {
+    private static final Comparator<Offer> BY_PRICE = Comparator.<Offer, BigDecimal>comparing(offer -> offer.price)
+            .thenComparingInt(offer -> offer.itemId);
+
+    private static class Offer {
+        final int itemId;
+        final String type;
+        final boolean selling;
+        final BigDecimal price;
+
+        Offer(int itemId, String type, boolean selling, BigDecimal price) {
+            this.itemId = itemId;
+            this.type = type;
+            this.selling = selling;
+            this.price = price;
+        }
+
+        boolean sameAs(Offer other) {
+            return other != null && type.equals(other.type) && selling == other.selling && price.compareTo(other.price) == 0;
+        }
+    }
+
+    private final ShopCatalog catalog;
+    private final Map<Integer, String> types = new ConcurrentHashMap<>();
+    private final Map<Integer, Offer> offers = new ConcurrentHashMap<>();
+    private final Map<String, NavigableSet<Offer>> sellOffers = new ConcurrentHashMap<>();
+    private final Map<String, NavigableSet<Offer>> buyOffers = new ConcurrentHashMap<>();
+
+    public PriceIndex(ShopCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Reads the item type of every listing in the catalog and indexes it.
+     * Listings added meanwhile are indexed by {@link #add} as usual.
+     */
+    public CompletableFuture<Void> build() {
+        List<ShopCatalog.ItemRecord> items = catalog.getItems();
+        return CompletableFuture.runAsync(() -> {
+            for (ShopCatalog.ItemRecord item : items) {
+                if (types.containsKey(item.id)) {
+                    continue;
+                }
+                String type = ItemCodec.readItemId(item.nbtBlob, item.nbtData);
+                if (type != null) {
+                    types.putIfAbsent(item.id, type);
+                    refresh(item.id);
+                }
+            }
+        }).exceptionally(error -> {
+            error.printStackTrace();
+            return null;
+        });
+    }
+
+    public void add(int itemId, String type) {
+        types.put(itemId, type);
+        refresh(itemId);
+    }
+
+    public synchronized void remove(int itemId) {
+        types.remove(itemId);
+        unlist(offers.remove(itemId));
+    }
+
+    /**
+     * Brings the listing's entry in line with the catalog. Cheap when nothing
+     * the index cares about changed, so it is called after every trade.
+     */
+    public synchronized void refresh(int itemId) {
+        ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+        String type = types.get(itemId);
+        Offer current = offers.get(itemId);
+        if (item == null) {
+            types.remove(itemId);
+        }
+        if (item == null || type == null || item.price == null || !isListed(item)) {
+            unlist(offers.remove(itemId));
+            return;
+        }
+
+        Offer offer = new Offer(itemId, type, item.isSelling, item.price);
+        if (offer.sameAs(current)) {
+            return;
+        }
+        unlist(current);
+        offers.put(itemId, offer);
+        (offer.selling ? sellOffers : buyOffers)
+                .computeIfAbsent(type, key -> new ConcurrentSkipListSet<>(BY_PRICE))
+                .add(offer);
+    }
+
+    /**
+     * Up to {@code limit} selling listings of the item type, cheapest first.
+     */
+    public List<ShopCatalog.ItemRecord> getCheapestOffers(String type, int limit) {
+        NavigableSet<Offer> set = sellOffers.get(type);
+        return set == null ? new ArrayList<>() : collect(set, limit);
+    }
+
+    /**
+     * Up to {@code limit} buying listings of the item type, best paying first.
+     */
+    public List<ShopCatalog.ItemRecord> getBestBuyers(String type, int limit) {
+        NavigableSet<Offer> set = buyOffers.get(type);
+        return set == null ? new ArrayList<>() : collect(set.descendingSet(), limit);
+    }
+
+    public int size() {
+        return offers.size();
+    }
+
+    private List<ShopCatalog.ItemRecord> collect(NavigableSet<Offer> set, int limit) {
+        List<ShopCatalog.ItemRecord> result = new ArrayList<>(limit);
+        for (Offer offer : set) {
+            if (result.size() >= limit) {
+                break;
+            }
+            ShopCatalog.ItemRecord item = catalog.getItem(offer.itemId);
+            if (item != null) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    private boolean isListed(ShopCatalog.ItemRecord item) {
+        if (!item.isSelling || item.quantity > 0) {
+            return true;
+        }
+        ShopCatalog.ShopRecord shop = catalog.getShop(item.shopId);
+        return shop != null && shop.isAdminShop;
+    }
+
+    private void unlist(Offer offer) {
+        if (offer == null) {
+            return;
+        }
+        NavigableSet<Offer> set = (offer.selling ? sellOffers : buyOffers).get(offer.type);
+        if (set != null) {
+            set.remove(offer);
+        }
+    }
+}
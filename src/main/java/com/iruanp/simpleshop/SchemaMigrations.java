@@ -0,0 +1,182 @@
+package com.iruanp.simpleshop;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Ordered schema migrations. Each entry runs once, in its own transaction,
+ * and its 1-based position in {@link #MIGRATIONS} is recorded in the
+ * schema_version table. Only ever append to the list.
+ */
+public class SchemaMigrations {
+    @FunctionalInterface
+    private interface Migration {
+        void apply(Statement stmt) throws SQLException;
+    }
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            SchemaMigrations::createBaseTables,
+            SchemaMigrations::createIndexes,
+            SchemaMigrations::addBinaryItemColumn,
+            SchemaMigrations::addNotificationDigests,
+            SchemaMigrations::createPayoutLedger,
+            SchemaMigrations::createTradeRollups,
+            SchemaMigrations::createShopStats
+    );
+
+    public static void migrate(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (" +
+                    "version INTEGER PRIMARY KEY," +
+                    "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
+                    ")");
+        }
+
+        int current = getCurrentVersion(connection);
+        for (int version = current + 1; version <= MIGRATIONS.size(); version++) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement()) {
+                MIGRATIONS.get(version - 1).apply(stmt);
+                try (PreparedStatement pstmt = connection.prepareStatement("INSERT INTO schema_version (version) VALUES (?)")) {
+                    pstmt.setInt(1, version);
+                    pstmt.executeUpdate();
+                }
+                connection.commit();
+                Simpleshop.LOGGER.info("Applied database migration {}", version);
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    private static int getCurrentVersion(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    // 1: the tables as they existed before versioning; IF NOT EXISTS keeps this safe on old databases
+    private static void createBaseTables(Statement stmt) throws SQLException {
+        // Create shops table
+        stmt.execute("CREATE TABLE IF NOT EXISTS shops (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "name TEXT NOT NULL," +
+                "item TEXT," +
+                "description TEXT," +
+                "isAdminShop BOOLEAN" +
+                ")");
+
+        // Create items table
+        stmt.execute("CREATE TABLE IF NOT EXISTS items (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "shopId INTEGER," +
+                "nbtData TEXT," +
+                "quantity INTEGER," +
+                "isSelling BOOLEAN," +
+                "price DECIMAL(10, 2)," +
+                "creator TEXT," +
+                "FOREIGN KEY(shopId) REFERENCES shops(id)" +
+                ")");
+
+        // Create notifications table
+        stmt.execute("CREATE TABLE IF NOT EXISTS notifications (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "player_name TEXT NOT NULL," +
+                "message TEXT NOT NULL," +
+                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
+                "is_read INTEGER DEFAULT 0" +
+                ")");
+
+        // Create trades ledger
+        stmt.execute("CREATE TABLE IF NOT EXISTS trades (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "item_id INTEGER NOT NULL," +
+                "shop_id INTEGER NOT NULL," +
+                "player TEXT," +
+                "type TEXT NOT NULL," +
+                "quantity INTEGER NOT NULL," +
+                "price DECIMAL(10, 2)," +
+                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
+                ")");
+    }
+
+    // 2: indexes for every lookup that used to scan, plus unique shop names
+    private static void createIndexes(Statement stmt) throws SQLException {
+        // Older versions did not enforce unique names; suffix duplicates with their id so the index can be built
+        stmt.execute("UPDATE shops SET name = name || ' (' || id || ')' " +
+                "WHERE id NOT IN (SELECT MIN(id) FROM shops GROUP BY name)");
+        stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS idx_shops_name ON shops(name)");
+
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_items_shopId ON items(shopId)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_items_creator ON items(creator)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_notifications_player_read ON notifications(player_name, is_read)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_notifications_created_at ON notifications(created_at)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_trades_item ON trades(item_id)");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_trades_created_at ON trades(created_at)");
+    }
+
+    // 3: compressed binary NBT for listings; rows keep their JSON until NbtStorageMigrator converts them
+    private static void addBinaryItemColumn(Statement stmt) throws SQLException {
+        stmt.execute("ALTER TABLE items ADD COLUMN nbtBlob BLOB");
+    }
+
+    // 4: coalesced trade notifications are updated in place, found by their digest key
+    private static void addNotificationDigests(Statement stmt) throws SQLException {
+        stmt.execute("ALTER TABLE notifications ADD COLUMN digest_key TEXT");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_notifications_digest ON notifications(digest_key) WHERE digest_key IS NOT NULL");
+    }
+
+    // 5: sale proceeds owed to listing owners who could not be paid right away
+    private static void createPayoutLedger(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS payouts (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                "seller TEXT NOT NULL," +
+                "amount INTEGER NOT NULL," +
+                "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
+                ")");
+        stmt.execute("CREATE INDEX IF NOT EXISTS idx_payouts_seller ON payouts(seller, id)");
+    }
+
+    // 6: hourly and daily totals per listing, kept up to date with every trade and backfilled from the ledger
+    private static void createTradeRollups(Statement stmt) throws SQLException {
+        createTradeRollup(stmt, "trade_rollups_hourly", "strftime('%Y-%m-%d %H:00', created_at)");
+        createTradeRollup(stmt, "trade_rollups_daily", "date(created_at)");
+    }
+
+    private static void createTradeRollup(Statement stmt, String table, String bucket) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS " + table + " (" +
+                "item_id INTEGER NOT NULL," +
+                "bucket TEXT NOT NULL," +
+                "type TEXT NOT NULL," +
+                "trades INTEGER NOT NULL," +
+                "volume INTEGER NOT NULL," +
+                "min_price DECIMAL(10, 2)," +
+                "max_price DECIMAL(10, 2)," +
+                "value_sum DECIMAL(20, 2)," +
+                "PRIMARY KEY (item_id, bucket, type)" +
+                ") WITHOUT ROWID");
+        stmt.execute("INSERT INTO " + table + " (item_id, bucket, type, trades, volume, min_price, max_price, value_sum) " +
+                "SELECT item_id, " + bucket + ", type, COUNT(*), SUM(ABS(quantity)), MIN(price), MAX(price), SUM(price * ABS(quantity)) " +
+                "FROM trades GROUP BY 1, 2, 3");
+    }
+
+    // 7: trade count and last trade per shop for the shop list, backfilled from the ledger
+    private static void createShopStats(Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS shop_stats (" +
+                "shop_id INTEGER PRIMARY KEY," +
+                "trade_count INTEGER NOT NULL," +
+                "last_trade_at TIMESTAMP" +
+                ")");
+        stmt.execute("INSERT INTO shop_stats (shop_id, trade_count, last_trade_at) " +
+                "SELECT shop_id, COUNT(*), MAX(created_at) FROM trades WHERE type IN ('BUY', 'SELL') GROUP BY shop_id");
+    }
+}
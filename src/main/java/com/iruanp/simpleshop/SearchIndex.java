@@ -0,0 +1,291 @@
+package com.iruanp.simpleshop;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.minecraft.enchantment.Enchantment;
+import net.minecraft.enchantment.EnchantmentHelper;
+import net.minecraft.item.ItemStack;
+import net.minecraft.registry.Registries;
+import net.minecraft.registry.entry.RegistryEntry;
+
+/**
+ * Inverted index over every listing, for /shop search. Items are indexed by
+ * registry id, display name and enchantments; shops by their description,
+ * which then matches every item in the shop. Query terms match indexed terms
+ * by prefix, and an item must match all of them.
+ *
+ * Building and updating the index decodes listings, so it happens on a
+ * background thread, in the order {@link ShopDatabase} reports changes.
+ * Queries read the posting maps directly and never wait for it.
+ */
+public class SearchIndex {
+    private static final int NAME_WEIGHT = 4;
+    private static final int ITEM_ID_WEIGHT = 3;
+    private static final int ENCHANTMENT_WEIGHT = 2;
+    private static final int DESCRIPTION_WEIGHT = 1;
+    private static final Metrics.Timer SEARCH_TIMER = Metrics.timer("search.query");
+
+    private final ShopCatalog catalog;
+    // term -> item id -> weight of the strongest field the term came from
+    private final NavigableMap<String, Map<Integer, Integer>> itemPostings = new ConcurrentSkipListMap<>();
+    private final NavigableMap<String, Set<Integer>> shopPostings = new ConcurrentSkipListMap<>();
+    // Terms currently indexed for each item and shop, so they can be taken out again
+    private final Map<Integer, Set<String>> itemTerms = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<String>> shopTerms = new ConcurrentHashMap<>();
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SimpleShop-Search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean ready;
+
+    public SearchIndex(ShopCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    public void start() {
+        indexer.execute(() -> {
+            long start = System.nanoTime();
+            for (ShopCatalog.ShopRecord shop : catalog.getShops()) {
+                indexShopNow(shop.id);
+            }
+            for (ShopCatalog.ItemRecord item : catalog.getItems()) {
+                indexItemNow(item.id);
+            }
+            ready = true;
+            Simpleshop.LOGGER.info("Indexed {} listings for search in {} ms", itemTerms.size(),
+                    (System.nanoTime() - start) / 1_000_000);
+        });
+    }
+
+    public void shutdown() {
+        indexer.shutdownNow();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public int getIndexedItemCount() {
+        return itemTerms.size();
+    }
+
+    public void indexItem(int itemId) {
+        submit(() -> indexItemNow(itemId));
+    }
+
+    public void removeItem(int itemId) {
+        submit(() -> removeItemNow(itemId));
+    }
+
+    public void indexShop(int shopId) {
+        submit(() -> indexShopNow(shopId));
+    }
+
+    public void removeShop(int shopId, List<Integer> itemIds) {
+        submit(() -> {
+            removeShopNow(shopId);
+            for (Integer itemId : itemIds) {
+                removeItemNow(itemId);
+            }
+        });
+    }
+
+    /**
+     * Returns the ids of the listings matching every term of the query, best
+     * match first and cheapest first among equal matches, at most
+     * {@code limit} of them.
+     */
+    public List<Integer> search(String query, int limit) {
+        long start = System.nanoTime();
+        try {
+            Set<String> terms = tokenize(query, false);
+            if (terms.isEmpty()) {
+                return new ArrayList<>();
+            }
+
+            Map<Integer, Integer> scores = null;
+            for (String term : terms) {
+                Map<Integer, Integer> termScores = scoreTerm(term);
+                if (scores == null) {
+                    scores = termScores;
+                } else {
+                    scores.keySet().retainAll(termScores.keySet());
+                    for (Map.Entry<Integer, Integer> entry : scores.entrySet()) {
+                        entry.setValue(entry.getValue() + termScores.get(entry.getKey()));
+                    }
+                }
+                if (scores.isEmpty()) {
+                    return new ArrayList<>();
+                }
+            }
+
+            List<ShopCatalog.ItemRecord> matches = new ArrayList<>(scores.size());
+            for (Integer itemId : scores.keySet()) {
+                ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+                if (item != null) {
+                    matches.add(item);
+                }
+            }
+            Map<Integer, Integer> finalScores = scores;
+            matches.sort(Comparator.<ShopCatalog.ItemRecord>comparingInt(item -> -finalScores.get(item.id))
+                    .thenComparing(item -> item.price, Comparator.nullsLast(Comparator.<BigDecimal>naturalOrder()))
+                    .thenComparingInt(item -> item.id));
+
+            List<Integer> result = new ArrayList<>(Math.min(limit, matches.size()));
+            for (ShopCatalog.ItemRecord item : matches) {
+                if (result.size() >= limit) {
+                    break;
+                }
+                result.add(item.id);
+            }
+            return result;
+        } finally {
+            SEARCH_TIMER.recordSince(start);
+        }
+    }
+
+    private Map<Integer, Integer> scoreTerm(String term) {
+        Map<Integer, Integer> scores = new HashMap<>();
+        // An exact term counts double compared to one it is only a prefix of
+        for (Map.Entry<String, Map<Integer, Integer>> entry : prefixRange(itemPostings, term).entrySet()) {
+            int boost = entry.getKey().equals(term) ? 2 : 1;
+            for (Map.Entry<Integer, Integer> posting : entry.getValue().entrySet()) {
+                scores.merge(posting.getKey(), posting.getValue() * boost, Math::max);
+            }
+        }
+        for (Map.Entry<String, Set<Integer>> entry : prefixRange(shopPostings, term).entrySet()) {
+            int boost = entry.getKey().equals(term) ? 2 : 1;
+            for (Integer shopId : entry.getValue()) {
+                for (ShopCatalog.ItemRecord item : catalog.getItemsOfShop(shopId)) {
+                    scores.merge(item.id, DESCRIPTION_WEIGHT * boost, Math::max);
+                }
+            }
+        }
+        return scores;
+    }
+
+    private static <V> NavigableMap<String, V> prefixRange(NavigableMap<String, V> postings, String prefix) {
+        return postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private void submit(Runnable task) {
+        if (!indexer.isShutdown()) {
+            indexer.execute(task);
+        }
+    }
+
+    private void indexItemNow(int itemId) {
+        removeItemNow(itemId);
+        ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+        if (item == null) {
+            return;
+        }
+        ItemStack stack;
+        try {
+            stack = ItemCodec.decode(item.nbtBlob, item.nbtData);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (stack.isEmpty()) {
+            return;
+        }
+
+        Map<String, Integer> weights = new HashMap<>();
+        addTerms(weights, stack.getName().getString(), NAME_WEIGHT);
+        addTerms(weights, stack.getItem().getName().getString(), NAME_WEIGHT);
+        addTerms(weights, Registries.ITEM.getId(stack.getItem()).toString(), ITEM_ID_WEIGHT);
+        for (RegistryEntry<Enchantment> enchantment : EnchantmentHelper.getEnchantments(stack).getEnchantments()) {
+            addTerms(weights, enchantment.value().description().getString(), ENCHANTMENT_WEIGHT);
+            enchantment.getKey().ifPresent(key -> addTerms(weights, key.getValue().getPath(), ENCHANTMENT_WEIGHT));
+        }
+
+        for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+            itemPostings.computeIfAbsent(entry.getKey(), term -> new ConcurrentHashMap<>()).put(itemId, entry.getValue());
+        }
+        itemTerms.put(itemId, weights.keySet());
+    }
+
+    private void indexShopNow(int shopId) {
+        removeShopNow(shopId);
+        ShopCatalog.ShopRecord shop = catalog.getShop(shopId);
+        if (shop == null || shop.description == null) {
+            return;
+        }
+        Set<String> terms = tokenize(shop.description, true);
+        for (String term : terms) {
+            shopPostings.computeIfAbsent(term, key -> ConcurrentHashMap.newKeySet()).add(shopId);
+        }
+        shopTerms.put(shopId, terms);
+    }
+
+    private void removeItemNow(int itemId) {
+        Set<String> terms = itemTerms.remove(itemId);
+        if (terms == null) {
+            return;
+        }
+        for (String term : terms) {
+            itemPostings.computeIfPresent(term, (key, ids) -> {
+                ids.remove(itemId);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    private void removeShopNow(int shopId) {
+        Set<String> terms = shopTerms.remove(shopId);
+        if (terms == null) {
+            return;
+        }
+        for (String term : terms) {
+            shopPostings.computeIfPresent(term, (key, ids) -> {
+                ids.remove(shopId);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    private static void addTerms(Map<String, Integer> weights, String text, int weight) {
+        for (String term : tokenize(text, true)) {
+            weights.merge(term, weight, Math::max);
+        }
+    }
+
+    /**
+     * Splits text into lower-case words. Chinese and Japanese names are not
+     * separated by spaces, so when indexing, every suffix of such a word is
+     * kept as well; prefix matching then finds any part of it.
+     */
+    static Set<String> tokenize(String text, boolean indexing) {
+        Set<String> terms = new HashSet<>();
+        if (text == null) {
+            return terms;
+        }
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            terms.add(word);
+            if (indexing && word.codePoints().anyMatch(Character::isIdeographic)) {
+                for (int i = word.offsetByCodePoints(0, 1); i < word.length(); i = word.offsetByCodePoints(i, 1)) {
+                    terms.add(word.substring(i));
+                }
+            }
+        }
+        return terms;
+    }
+}
@@ -0,0 +1,361 @@
+package com.iruanp.simpleshop;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory copy of the shops and items tables. Loaded once when the database
+ * opens and kept up to date by every mutation in {@link ShopDatabase}, so the
+ * read paths used while trading never go to SQLite.
+ */
+public class ShopCatalog {
+    public static class ShopRecord {
+        public final int id;
+        public String name;
+        public String description;
+        public boolean isAdminShop;
+        public String item;
+        // Changes whenever anything shown in the shop list changes; see touchShop
+        public volatile long version;
+        // Summary shown in the shop list; the listing count is kept in itemCounts
+        public final AtomicLong totalStock = new AtomicLong();
+        public final AtomicLong tradeCount = new AtomicLong();
+        public volatile long lastTradeAt;
+
+        public ShopRecord(int id, String name, String description, boolean isAdminShop, String item) {
+            this.id = id;
+            this.name = name;
+            this.description = description;
+            this.isAdminShop = isAdminShop;
+            this.item = item;
+        }
+    }
+
+    public static class ItemRecord {
+        public final int id;
+        public int shopId;
+        public String nbtData;
+        public byte[] nbtBlob;
+        public int quantity;
+        public boolean isSelling;
+        public BigDecimal price;
+        public String creator;
+
+        public ItemRecord(int id, int shopId, String nbtData, byte[] nbtBlob, int quantity, boolean isSelling, BigDecimal price, String creator) {
+            this.id = id;
+            this.shopId = shopId;
+            this.nbtData = nbtData;
+            this.nbtBlob = nbtBlob;
+            this.quantity = quantity;
+            this.isSelling = isSelling;
+            this.price = price;
+            this.creator = creator;
+        }
+
+        public int storedSize() {
+            if (nbtBlob != null) {
+                return nbtBlob.length;
+            }
+            return nbtData != null ? nbtData.length() : 0;
+        }
+    }
+
+    private final Map<Integer, ShopRecord> shopsById = new ConcurrentHashMap<>();
+    private final Map<String, ShopRecord> shopsByName = new ConcurrentHashMap<>();
+    private final Map<Integer, ItemRecord> items = new ConcurrentHashMap<>();
+    private final Map<Integer, NavigableSet<Integer>> itemsByShop = new ConcurrentHashMap<>();
+    // Skip list size() walks the whole list, so counts are kept alongside
+    private final Map<Integer, AtomicInteger> itemCounts = new ConcurrentHashMap<>();
+    private final AtomicInteger lastShopId = new AtomicInteger();
+    private final AtomicInteger lastItemId = new AtomicInteger();
+    private final AtomicLong shopVersions = new AtomicLong();
+
+    public void load(Connection connection) throws SQLException {
+        clear();
+        try (Statement stmt = connection.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT id, name, description, isAdminShop, item FROM shops")) {
+                while (rs.next()) {
+                    putShop(new ShopRecord(
+                            rs.getInt("id"),
+                            rs.getString("name"),
+                            rs.getString("description"),
+                            rs.getBoolean("isAdminShop"),
+                            rs.getString("item")));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT shop_id, trade_count, CAST(strftime('%s', last_trade_at) AS INTEGER) FROM shop_stats")) {
+                while (rs.next()) {
+                    ShopRecord shop = shopsById.get(rs.getInt(1));
+                    if (shop != null) {
+                        shop.tradeCount.set(rs.getLong(2));
+                        shop.lastTradeAt = rs.getLong(3) * 1000;
+                    }
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT id, shopId, nbtData, nbtBlob, quantity, isSelling, price, creator FROM items")) {
+                while (rs.next()) {
+                    putItem(new ItemRecord(
+                            rs.getInt("id"),
+                            rs.getInt("shopId"),
+                            rs.getString("nbtData"),
+                            rs.getBytes("nbtBlob"),
+                            rs.getInt("quantity"),
+                            rs.getBoolean("isSelling"),
+                            rs.getBigDecimal("price"),
+                            rs.getString("creator")));
+                }
+            }
+            // AUTOINCREMENT never hands out an id twice, so continue from the recorded sequence
+            try (ResultSet rs = stmt.executeQuery("SELECT name, seq FROM sqlite_sequence")) {
+                while (rs.next()) {
+                    if ("shops".equals(rs.getString("name"))) {
+                        lastShopId.accumulateAndGet(rs.getInt("seq"), Math::max);
+                    } else if ("items".equals(rs.getString("name"))) {
+                        lastItemId.accumulateAndGet(rs.getInt("seq"), Math::max);
+                    }
+                }
+            }
+        }
+        Simpleshop.LOGGER.info("Loaded {} shops and {} items into the shop catalog", shopsById.size(), items.size());
+    }
+
+    public void clear() {
+        shopsById.clear();
+        shopsByName.clear();
+        items.clear();
+        itemsByShop.clear();
+        itemCounts.clear();
+        lastShopId.set(0);
+        lastItemId.set(0);
+    }
+
+    public int nextShopId() {
+        return lastShopId.incrementAndGet();
+    }
+
+    public int nextItemId() {
+        return lastItemId.incrementAndGet();
+    }
+
+    public ShopRecord getShop(String name) {
+        return name == null ? null : shopsByName.get(name);
+    }
+
+    public ShopRecord getShop(int shopId) {
+        return shopsById.get(shopId);
+    }
+
+    public List<ShopRecord> getShops() {
+        List<ShopRecord> shops = new ArrayList<>(shopsById.values());
+        shops.sort(Comparator.comparing(shop -> shop.name));
+        return shops;
+    }
+
+    public ItemRecord getItem(int itemId) {
+        return items.get(itemId);
+    }
+
+    public List<ItemRecord> getItems() {
+        return new ArrayList<>(items.values());
+    }
+
+    public ShopRecord getShopOfItem(int itemId) {
+        ItemRecord item = items.get(itemId);
+        return item == null ? null : shopsById.get(item.shopId);
+    }
+
+    public List<ItemRecord> getItemsOfShop(int shopId) {
+        List<ItemRecord> result = new ArrayList<>();
+        NavigableSet<Integer> ids = itemsByShop.get(shopId);
+        if (ids != null) {
+            for (Integer id : ids) {
+                ItemRecord item = items.get(id);
+                if (item != null) {
+                    result.add(item);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns up to {@code limit} items of the shop with ids greater than
+     * {@code afterItemId}, in id order. Pass 0 for the first page.
+     */
+    public List<ItemRecord> getItemsOfShopAfter(int shopId, int afterItemId, int limit) {
+        NavigableSet<Integer> ids = itemsByShop.get(shopId);
+        return ids == null ? new ArrayList<>() : collect(ids.tailSet(afterItemId, false), limit);
+    }
+
+    /**
+     * Returns up to {@code limit} items of the shop with ids less than
+     * {@code beforeItemId}, in id order.
+     */
+    public List<ItemRecord> getItemsOfShopBefore(int shopId, int beforeItemId, int limit) {
+        NavigableSet<Integer> ids = itemsByShop.get(shopId);
+        if (ids == null) {
+            return new ArrayList<>();
+        }
+        List<ItemRecord> result = collect(ids.headSet(beforeItemId, false).descendingSet(), limit);
+        Collections.reverse(result);
+        return result;
+    }
+
+    private List<ItemRecord> collect(NavigableSet<Integer> ids, int limit) {
+        List<ItemRecord> result = new ArrayList<>(limit);
+        for (Integer id : ids) {
+            if (result.size() >= limit) {
+                break;
+            }
+            ItemRecord item = items.get(id);
+            if (item != null) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    public int countItemsOfShop(int shopId) {
+        AtomicInteger count = itemCounts.get(shopId);
+        return count == null ? 0 : count.get();
+    }
+
+    private void adjustItemCount(int shopId, int delta) {
+        itemCounts.computeIfAbsent(shopId, id -> new AtomicInteger()).addAndGet(delta);
+        ShopRecord shop = shopsById.get(shopId);
+        if (shop != null) {
+            touchShop(shop);
+        }
+    }
+
+    /**
+     * Gives the shop a new version. Versions are unique across all shops, so a
+     * recreated shop never matches something cached for its predecessor.
+     */
+    public void touchShop(ShopRecord shop) {
+        shop.version = shopVersions.incrementAndGet();
+    }
+
+    public void putShop(ShopRecord shop) {
+        touchShop(shop);
+        lastShopId.accumulateAndGet(shop.id, Math::max);
+        shopsById.put(shop.id, shop);
+        shopsByName.put(shop.name, shop);
+    }
+
+    public void renameShop(String oldName, String newName) {
+        ShopRecord shop = shopsByName.remove(oldName);
+        if (shop != null) {
+            shop.name = newName;
+            touchShop(shop);
+            shopsByName.put(newName, shop);
+        }
+    }
+
+    public void removeShop(String name) {
+        ShopRecord shop = shopsByName.remove(name);
+        if (shop == null) {
+            return;
+        }
+        shopsById.remove(shop.id);
+        itemCounts.remove(shop.id);
+        NavigableSet<Integer> ids = itemsByShop.remove(shop.id);
+        if (ids != null) {
+            for (Integer id : ids) {
+                items.remove(id);
+            }
+        }
+    }
+
+    public void putItem(ItemRecord item) {
+        lastItemId.accumulateAndGet(item.id, Math::max);
+        items.put(item.id, item);
+        if (itemsByShop.computeIfAbsent(item.shopId, id -> new ConcurrentSkipListSet<>()).add(item.id)) {
+            adjustItemCount(item.shopId, 1);
+            adjustShopStock(item.shopId, item.quantity);
+        }
+    }
+
+    public void moveItem(int itemId, int targetShopId) {
+        ItemRecord item = items.get(itemId);
+        if (item == null) {
+            return;
+        }
+        // Under the listing's lock so a trade cannot credit its stock to the shop it is leaving
+        synchronized (item) {
+            NavigableSet<Integer> ids = itemsByShop.get(item.shopId);
+            if (ids != null && ids.remove(itemId)) {
+                adjustItemCount(item.shopId, -1);
+                adjustShopStock(item.shopId, -item.quantity);
+            }
+            item.shopId = targetShopId;
+            if (itemsByShop.computeIfAbsent(targetShopId, id -> new ConcurrentSkipListSet<>()).add(itemId)) {
+                adjustItemCount(targetShopId, 1);
+                adjustShopStock(targetShopId, item.quantity);
+            }
+        }
+    }
+
+    public void removeItem(int itemId) {
+        ItemRecord item = items.remove(itemId);
+        if (item != null) {
+            synchronized (item) {
+                NavigableSet<Integer> ids = itemsByShop.get(item.shopId);
+                if (ids != null && ids.remove(itemId)) {
+                    adjustItemCount(item.shopId, -1);
+                    adjustShopStock(item.shopId, -item.quantity);
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes a listing's stock, and its shop's total with it. Callers that
+     * may race on the same listing hold its lock.
+     */
+    public void adjustQuantity(ItemRecord item, int delta) {
+        item.quantity += delta;
+        adjustShopStock(item.shopId, delta);
+    }
+
+    public void recordTrade(int shopId, long timestamp) {
+        ShopRecord shop = shopsById.get(shopId);
+        if (shop != null) {
+            shop.tradeCount.incrementAndGet();
+            shop.lastTradeAt = timestamp;
+            touchShop(shop);
+        }
+    }
+
+    /**
+     * Takes back a trade counted by {@link #recordTrade} that was never stored.
+     */
+    public void revertTrade(int shopId) {
+        ShopRecord shop = shopsById.get(shopId);
+        if (shop != null) {
+            shop.tradeCount.decrementAndGet();
+            touchShop(shop);
+        }
+    }
+
+    private void adjustShopStock(int shopId, int delta) {
+        ShopRecord shop = shopsById.get(shopId);
+        if (shop != null && delta != 0) {
+            shop.totalStock.addAndGet(delta);
+            touchShop(shop);
+        }
+    }
+}
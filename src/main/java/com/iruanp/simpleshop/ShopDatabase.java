@@ -1,6 +1,7 @@
 package com.iruanp.simpleshop;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -8,486 +9,1332 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
-import com.mojang.datafixers.util.Pair;
 import com.iruanp.simpleshop.service.ShopEntry;
 import com.iruanp.simpleshop.service.ShopItemEntry;
 
+import net.fabricmc.loader.api.FabricLoader;
 import net.minecraft.item.ItemStack;
+import net.minecraft.registry.Registries;
+
+import org.sqlite.SQLiteConfig;
 
 public class ShopDatabase {
+    public static final int TRADE_REJECTED = -1;
+    private static final int READ_POOL_SIZE = 2;
+    // Reads are short, so waiting this long means the pool is missing connections
+    private static final long READ_POOL_TIMEOUT_MS = 5000;
+    private static final Metrics.Timer GET_SHOPS_TIMER = Metrics.timer("db.getShops");
+    private static final Metrics.Timer GET_USER_SHOPS_TIMER = Metrics.timer("db.getUserShops");
+    private static final Metrics.Timer GET_SHOP_ITEMS_TIMER = Metrics.timer("db.getShopItems");
+    private static final Metrics.Timer GET_SHOP_ITEMS_AFTER_TIMER = Metrics.timer("db.getShopItemsAfter");
+    private static final Metrics.Timer GET_SHOP_ITEMS_BEFORE_TIMER = Metrics.timer("db.getShopItemsBefore");
+    private static final Metrics.Timer GET_ITEM_STACK_TIMER = Metrics.timer("db.getItemStack");
+    private static final Metrics.Timer EXECUTE_TRADE_TIMER = Metrics.timer("db.executeTrade");
+    private static final Metrics.Timer EXECUTE_TRADES_TIMER = Metrics.timer("db.executeTrades");
+    // Bucket expressions match the ones SchemaMigrations backfilled the rollups with
+    private static final List<String> ROLLUP_SQL = List.of(
+            rollupSql("trade_rollups_hourly", "strftime('%Y-%m-%d %H:00', 'now')"),
+            rollupSql("trade_rollups_daily", "date('now')"));
     private static String DB_URL;
-    private Connection connection;
+    private StatementCache writeStatements;
+    private final BlockingQueue<StatementCache> readPool = new ArrayBlockingQueue<>(READ_POOL_SIZE);
+    private final ShopCatalog catalog = new ShopCatalog();
+    private final ItemStackCache itemStackCache = new ItemStackCache(Config.getItemCacheSizeKb() * 1024L);
+    private final PriceIndex priceIndex = new PriceIndex(catalog);
+    private PersistenceQueue persistenceQueue;
+    private volatile SearchIndex searchIndex;
+    private volatile ShopViewers viewers;
+    private volatile NotificationManager notifications;
+
+    /**
+     * Kinds of stock movement recorded in the trades ledger. The sign is the
+     * direction of the stock change, and the expected mode (if any) is the
+     * listing mode the trade requires.
+     */
+    public enum TradeType {
+        BUY(-1, Boolean.TRUE),
+        SELL(1, Boolean.FALSE),
+        STOCK(1, null),
+        TAKE(-1, null);
+
+        private final int sign;
+        private final Boolean expectedMode;
+
+        TradeType(int sign, Boolean expectedMode) {
+            this.sign = sign;
+            this.expectedMode = expectedMode;
+        }
+
+        // Purchases and sales, as opposed to an owner moving their own stock
+        boolean isMarketTrade() {
+            return expectedMode != null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Read<T> {
+        T apply(StatementCache statements) throws SQLException;
+    }
 
     public ShopDatabase() {
-        DB_URL = "jdbc:sqlite:" + Simpleshop.savePath + "/simpleshop.db";
-        connect();
+        // Development runs flag any statement that would scan a whole table
+        this(Simpleshop.savePath, FabricLoader.getInstance().isDevelopmentEnvironment());
+    }
+
+    /**
+     * Opens the database in the given directory. Also used by the benchmarks,
+     * which run without a Fabric loader.
+     */
+    public ShopDatabase(String savePath, boolean checkQueryPlans) {
+        DB_URL = "jdbc:sqlite:" + savePath + "/simpleshop.db";
+        connect(checkQueryPlans);
         initializeDatabase();
+        loadCatalog();
+        priceIndex.build();
+        if (Config.isAsyncWrites()) {
+            persistenceQueue = new PersistenceQueue(writeStatements);
+        }
     }
 
-    private void connect() {
+    private void connect(boolean checkQueryPlans) {
         try {
-            connection = DriverManager.getConnection(DB_URL);
+            Connection writeConnection = DriverManager.getConnection(DB_URL);
+            try (Statement stmt = writeConnection.createStatement()) {
+                // Only takes effect on a new database; existing ones are converted with /shop maintenance vacuum
+                stmt.execute("PRAGMA auto_vacuum = INCREMENTAL");
+            }
+            applyPragmas(writeConnection);
+            writeStatements = new StatementCache(writeConnection, checkQueryPlans);
+
+            // WAL lets these readers run alongside the writer without blocking on it
+            SQLiteConfig readConfig = new SQLiteConfig();
+            readConfig.setReadOnly(true);
+            for (int i = 0; i < READ_POOL_SIZE; i++) {
+                Connection readConnection = DriverManager.getConnection(DB_URL, readConfig.toProperties());
+                applyPragmas(readConnection);
+                readPool.add(new StatementCache(readConnection, checkQueryPlans));
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        if (readPool.size() < READ_POOL_SIZE) {
+            Simpleshop.LOGGER.error("Opened only {} of {} read connections to the shop database", readPool.size(), READ_POOL_SIZE);
+        }
     }
 
-    private void initializeDatabase() {
-        try (Statement stmt = getConnection().createStatement()) {
-            // Create shops table
-            stmt.execute("CREATE TABLE IF NOT EXISTS shops (" +
-                    "id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                    "name TEXT NOT NULL," +
-                    "item TEXT," +
-                    "description TEXT," +
-                    "isAdminShop BOOLEAN" +
-                    ")");
-
-            // Create items table
-            stmt.execute("CREATE TABLE IF NOT EXISTS items (" +
-                    "id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                    "shopId INTEGER," +
-                    "nbtData TEXT," +
-                    "quantity INTEGER," +
-                    "isSelling BOOLEAN," +
-                    "price DECIMAL(10, 2)," +
-                    "creator TEXT," +
-                    "FOREIGN KEY(shopId) REFERENCES shops(id)" +
-                    ")");
-
-            // Create notifications table
-            stmt.execute("CREATE TABLE IF NOT EXISTS notifications (" +
-                    "id INTEGER PRIMARY KEY AUTOINCREMENT," +
-                    "player_name TEXT NOT NULL," +
-                    "message TEXT NOT NULL," +
-                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP," +
-                    "is_read INTEGER DEFAULT 0" +
-                    ")");
+    private void applyPragmas(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL");
+            stmt.execute("PRAGMA synchronous = NORMAL");
+            stmt.execute("PRAGMA busy_timeout = 5000");
+            stmt.execute("PRAGMA mmap_size = 268435456");
+            stmt.execute("PRAGMA cache_size = -16000");
+            stmt.execute("PRAGMA temp_store = MEMORY");
+        }
+    }
+
+    /**
+     * Runs a write either on the writer thread or, when async writes are
+     * disabled, right away on the calling thread. The catalog has already been
+     * updated by the caller, so reads never wait for the returned future.
+     */
+    private CompletableFuture<Void> write(String operation, PersistenceQueue.Write write) {
+        long start = System.nanoTime();
+        return timed(operation, start, submitWrite(write));
+    }
+
+    private CompletableFuture<Void> submitWrite(PersistenceQueue.Write write) {
+        if (persistenceQueue != null) {
+            return persistenceQueue.submit(write);
+        }
+        synchronized (writeStatements) {
+            Connection conn = writeStatements.getConnection();
+            try {
+                conn.setAutoCommit(false);
+                write.apply(writeStatements);
+                conn.commit();
+                return CompletableFuture.completedFuture(null);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                try {
+                    conn.rollback();
+                } catch (SQLException rollbackError) {
+                    rollbackError.printStackTrace();
+                }
+                return CompletableFuture.failedFuture(e);
+            } finally {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a write outside of any transaction. Only for maintenance statements
+     * that SQLite refuses to run inside one.
+     */
+    private CompletableFuture<Void> writeExclusive(String operation, PersistenceQueue.Write write) {
+        long start = System.nanoTime();
+        CompletableFuture<Void> future;
+        if (persistenceQueue != null) {
+            future = persistenceQueue.submitExclusive(write);
+        } else {
+            synchronized (writeStatements) {
+                try {
+                    write.apply(writeStatements);
+                    future = CompletableFuture.completedFuture(null);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    future = CompletableFuture.failedFuture(e);
+                }
+            }
+        }
+        return timed(operation, start, future);
+    }
+
+    // Records the time until the write is committed, including any wait in the queue
+    private CompletableFuture<Void> timed(String operation, long start, CompletableFuture<Void> future) {
+        Metrics.Timer timer = Metrics.timer("db.write." + operation);
+        // Only a write run on the calling thread is known to have been the last to use the statements
+        String sql = persistenceQueue == null ? writeStatements.getLastSql() : null;
+        future.whenComplete((ignored, error) -> timer.recordSince(start, sql));
+        return future;
+    }
+
+    private <T> T read(String operation, Read<T> read, T fallback) {
+        long start = System.nanoTime();
+        StatementCache statements = null;
+        String sql = null;
+        try {
+            statements = readPool.poll(READ_POOL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (statements == null) {
+                Simpleshop.LOGGER.error("No read connection became free within {} ms for {}", READ_POOL_TIMEOUT_MS, operation);
+                return fallback;
+            }
+            return read.apply(statements);
         } catch (SQLException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (statements != null) {
+                sql = statements.getLastSql();
+                readPool.add(statements);
+            }
+            Metrics.timer("db.read." + operation).recordSince(start, sql);
         }
+        return fallback;
     }
 
-    public void addNotification(String playerName, String message) {
-        String sql = "INSERT INTO notifications (player_name, message) VALUES (?, ?)";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setString(1, playerName);
-            pstmt.setString(2, message);
-            pstmt.executeUpdate();
+    public int getPendingWrites() {
+        return persistenceQueue != null ? persistenceQueue.size() : 0;
+    }
+
+    private void initializeDatabase() {
+        try {
+            SchemaMigrations.migrate(writeStatements.getConnection());
         } catch (SQLException e) {
             e.printStackTrace();
         }
     }
 
-    public List<String> getUnreadNotifications(String playerName) {
-        List<String> notifications = new ArrayList<>();
-        String sql = "SELECT message FROM notifications WHERE player_name = ? AND is_read = 0";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setString(1, playerName);
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                notifications.add(rs.getString("message"));
-            }
+    private void loadCatalog() {
+        try {
+            catalog.load(writeStatements.getConnection());
         } catch (SQLException e) {
             e.printStackTrace();
         }
-        return notifications;
     }
 
-    public void markNotificationsAsRead(String playerName) {
-        String sql = "UPDATE notifications SET is_read = 1 WHERE player_name = ? AND is_read = 0";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+    public ShopCatalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Registers the index to notify of listing and shop changes. Set once
+     * the server has started, since indexing needs the registries.
+     */
+    public void setSearchIndex(SearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    /**
+     * Registers the open shop GUIs to patch when a listing changes.
+     */
+    public void setViewers(ShopViewers viewers) {
+        this.viewers = viewers;
+    }
+
+    /**
+     * Registers where to report trades that were undone because their write
+     * failed after the trade had already gone through.
+     */
+    public void setNotifications(NotificationManager notifications) {
+        this.notifications = notifications;
+    }
+
+    public PriceIndex getPriceIndex() {
+        return priceIndex;
+    }
+
+    public ItemStackCache getItemStackCache() {
+        return itemStackCache;
+    }
+
+    /**
+     * A buffered offline notification. Notifications with a digest key replace
+     * the message of the unread row with the same key instead of adding a row.
+     */
+    public static class PendingNotification {
+        public final String playerName;
+        public final String message;
+        public final String digestKey;
+
+        public PendingNotification(String playerName, String message, String digestKey) {
+            this.playerName = playerName;
+            this.message = message;
+            this.digestKey = digestKey;
+        }
+    }
+
+    public CompletableFuture<Void> addNotifications(List<PendingNotification> notifications) {
+        String updateSql = "UPDATE notifications SET message = ? WHERE digest_key = ? AND is_read = 0";
+        String insertSql = "INSERT INTO notifications (player_name, message, digest_key) VALUES (?, ?, ?)";
+        return write("addNotifications", statements -> {
+            List<Integer> digests = new ArrayList<>();
+            for (int i = 0; i < notifications.size(); i++) {
+                if (notifications.get(i).digestKey != null) {
+                    digests.add(i);
+                }
+            }
+
+            // Digests that already have an unread row get their message replaced; the rest are inserted
+            boolean[] updated = new boolean[notifications.size()];
+            if (!digests.isEmpty()) {
+                PreparedStatement update = statements.prepare(updateSql);
+                for (int index : digests) {
+                    update.setString(1, notifications.get(index).message);
+                    update.setString(2, notifications.get(index).digestKey);
+                    update.addBatch();
+                }
+                int[] counts = update.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    updated[digests.get(i)] = counts[i] > 0;
+                }
+            }
+
+            PreparedStatement insert = statements.prepare(insertSql);
+            boolean hasInserts = false;
+            for (int i = 0; i < notifications.size(); i++) {
+                if (updated[i]) {
+                    continue;
+                }
+                PendingNotification notification = notifications.get(i);
+                insert.setString(1, notification.playerName);
+                insert.setString(2, notification.message);
+                insert.setString(3, notification.digestKey);
+                insert.addBatch();
+                hasInserts = true;
+            }
+            if (hasInserts) {
+                insert.executeBatch();
+            }
+        });
+    }
+
+    public static class UnreadNotification {
+        public final long id;
+        public final String message;
+        public final String digestKey;
+
+        public UnreadNotification(long id, String message, String digestKey) {
+            this.id = id;
+            this.message = message;
+            this.digestKey = digestKey;
+        }
+    }
+
+    public List<UnreadNotification> getUnreadNotifications(String playerName) {
+        String sql = "SELECT id, message, digest_key FROM notifications WHERE player_name = ? AND is_read = 0 ORDER BY id";
+        return read("getUnreadNotifications", statements -> {
+            List<UnreadNotification> notifications = new ArrayList<>();
+            PreparedStatement pstmt = statements.prepare(sql);
             pstmt.setString(1, playerName);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    notifications.add(new UnreadNotification(rs.getLong("id"), rs.getString("message"), rs.getString("digest_key")));
+                }
+            }
+            return notifications;
+        }, new ArrayList<>());
+    }
+
+    public Set<String> getPlayersWithUnreadNotifications() {
+        String sql = "SELECT DISTINCT player_name FROM notifications WHERE is_read = 0";
+        return read("getPlayersWithUnreadNotifications", statements -> {
+            Set<String> players = new HashSet<>();
+            PreparedStatement pstmt = statements.prepare(sql);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    players.add(rs.getString("player_name"));
+                }
+            }
+            return players;
+        }, new HashSet<>());
+    }
+
+    /**
+     * Marks the player's notifications up to {@code maxId} as read. Rows
+     * written after they were read for delivery stay unread.
+     */
+    public CompletableFuture<Void> markNotificationsAsRead(String playerName, long maxId) {
+        String sql = "UPDATE notifications SET is_read = 1 WHERE player_name = ? AND is_read = 0 AND id <= ?";
+        return write("markNotificationsAsRead", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setString(1, playerName);
+            pstmt.setLong(2, maxId);
             pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        });
+    }
+
+    public static class PendingPayout {
+        public final long total;
+        public final int sales;
+        public final long lastId;
+
+        public PendingPayout(long total, int sales, long lastId) {
+            this.total = total;
+            this.sales = sales;
+            this.lastId = lastId;
         }
     }
 
-    public void cleanOldNotifications() {
-        String sql = "DELETE FROM notifications WHERE created_at < datetime('now', '-30 days')";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+    public CompletableFuture<Void> addPayout(String seller, long amount) {
+        String sql = "INSERT INTO payouts (seller, amount) VALUES (?, ?)";
+        return write("addPayout", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setString(1, seller);
+            pstmt.setLong(2, amount);
             pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        });
+    }
+
+    public PendingPayout getPendingPayout(String seller) {
+        String sql = "SELECT COALESCE(SUM(amount), 0), COUNT(*), COALESCE(MAX(id), 0) FROM payouts WHERE seller = ?";
+        return read("getPendingPayout", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setString(1, seller);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? new PendingPayout(rs.getLong(1), rs.getInt(2), rs.getLong(3)) : new PendingPayout(0, 0, 0);
+            }
+        }, new PendingPayout(0, 0, 0));
+    }
+
+    public Set<String> getSellersWithPendingPayouts() {
+        String sql = "SELECT DISTINCT seller FROM payouts";
+        return read("getSellersWithPendingPayouts", statements -> {
+            Set<String> sellers = new HashSet<>();
+            PreparedStatement pstmt = statements.prepare(sql);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    sellers.add(rs.getString("seller"));
+                }
+            }
+            return sellers;
+        }, new HashSet<>());
+    }
+
+    /**
+     * Removes a seller's ledger rows up to and including {@code lastId}, the
+     * ones a settlement has summed up. Rows added since are kept.
+     */
+    public CompletableFuture<Void> clearPayouts(String seller, long lastId) {
+        String sql = "DELETE FROM payouts WHERE seller = ? AND id <= ?";
+        return write("clearPayouts", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setString(1, seller);
+            pstmt.setLong(2, lastId);
+            pstmt.executeUpdate();
+        });
+    }
+
+    /**
+     * Deletes up to {@code limit} ledger rows older than the retention period.
+     * The hourly and daily rollups are kept.
+     */
+    public CompletableFuture<Integer> cleanOldTrades(int retentionDays, int limit) {
+        String sql = "DELETE FROM trades WHERE id IN " +
+                "(SELECT id FROM trades WHERE created_at < datetime('now', ?) LIMIT ?)";
+        int[] deleted = new int[1];
+        return write("cleanOldTrades", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setString(1, "-" + retentionDays + " days");
+            pstmt.setInt(2, limit);
+            deleted[0] = pstmt.executeUpdate();
+        }).thenApply(ignored -> deleted[0]);
+    }
+
+    /**
+     * Deletes at most {@code limit} notifications older than the retention
+     * period and returns how many were deleted.
+     */
+    public CompletableFuture<Integer> cleanOldNotifications(int retentionDays, int limit) {
+        String sql = "DELETE FROM notifications WHERE id IN " +
+                "(SELECT id FROM notifications WHERE created_at < datetime('now', ?) LIMIT ?)";
+        int[] deleted = new int[1];
+        return write("cleanOldNotifications", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setString(1, "-" + retentionDays + " days");
+            pstmt.setInt(2, limit);
+            deleted[0] = pstmt.executeUpdate();
+        }).thenApply(ignored -> deleted[0]);
+    }
+
+    public boolean isIncrementalVacuum() {
+        return read("isIncrementalVacuum", statements -> {
+            try (Statement stmt = statements.getConnection().createStatement()) {
+                // 2 = INCREMENTAL
+                return queryInt(stmt, "PRAGMA auto_vacuum") == 2;
+            }
+        }, false);
+    }
+
+    /**
+     * Returns the size of the database file in bytes, or -1 if it cannot be
+     * read.
+     */
+    public long getDatabaseSize() {
+        return read("getDatabaseSize", statements -> {
+            try (Statement stmt = statements.getConnection().createStatement()) {
+                return (long) queryInt(stmt, "PRAGMA page_count") * queryInt(stmt, "PRAGMA page_size");
+            }
+        }, -1L);
+    }
+
+    /**
+     * Switches an existing database to incremental auto-vacuum, which needs a
+     * full VACUUM once. Returns whether a conversion was done.
+     */
+    public CompletableFuture<Boolean> enableIncrementalVacuum() {
+        boolean[] converted = new boolean[1];
+        return writeExclusive("enableIncrementalVacuum", statements -> {
+            try (Statement stmt = statements.getConnection().createStatement()) {
+                try (ResultSet rs = stmt.executeQuery("PRAGMA auto_vacuum")) {
+                    // 2 = INCREMENTAL
+                    if (rs.next() && rs.getInt(1) == 2) {
+                        return;
+                    }
+                }
+                stmt.execute("PRAGMA auto_vacuum = INCREMENTAL");
+                stmt.execute("VACUUM");
+                converted[0] = true;
+            }
+        }).thenApply(ignored -> converted[0]);
+    }
+
+    /**
+     * Returns up to {@code pages} free pages to the file system and reports
+     * how many were freed.
+     */
+    public CompletableFuture<Integer> incrementalVacuum(int pages) {
+        int[] freed = new int[1];
+        return writeExclusive("incrementalVacuum", statements -> {
+            try (Statement stmt = statements.getConnection().createStatement()) {
+                int before = queryInt(stmt, "PRAGMA freelist_count");
+                // The pragma frees one page per step, so it has to be stepped to the end
+                try (ResultSet rs = stmt.executeQuery("PRAGMA incremental_vacuum(" + pages + ")")) {
+                    while (rs.next()) {
+                    }
+                }
+                freed[0] = before - queryInt(stmt, "PRAGMA freelist_count");
+            }
+        }).thenApply(ignored -> freed[0]);
+    }
+
+    /**
+     * Runs a passive WAL checkpoint and returns {log frames, checkpointed frames}.
+     */
+    public CompletableFuture<int[]> checkpoint() {
+        int[] result = new int[2];
+        return writeExclusive("checkpoint", statements -> {
+            try (Statement stmt = statements.getConnection().createStatement();
+                 ResultSet rs = stmt.executeQuery("PRAGMA wal_checkpoint(PASSIVE)")) {
+                if (rs.next()) {
+                    result[0] = rs.getInt(2);
+                    result[1] = rs.getInt(3);
+                }
+            }
+        }).thenApply(ignored -> result);
+    }
+
+    public CompletableFuture<Void> analyze() {
+        return writeExclusive("analyze", statements -> {
+            try (Statement stmt = statements.getConnection().createStatement()) {
+                stmt.execute("ANALYZE");
+            }
+        });
+    }
+
+    private static int queryInt(Statement stmt, String sql) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getInt(1) : 0;
         }
     }
 
     public List<ShopEntry> getShops() {
-        List<ShopEntry> shops = new ArrayList<>();
-        String sql = "SELECT name, description, isAdminShop, item FROM shops ORDER BY name";
-
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                shops.add(new ShopEntry(
-                        rs.getString("name"),
-                        rs.getString("description"),
-                        rs.getBoolean("isAdminShop"),
-                        rs.getString("item")));
+        long start = System.nanoTime();
+        try {
+            List<ShopEntry> shops = new ArrayList<>();
+            for (ShopCatalog.ShopRecord shop : catalog.getShops()) {
+                shops.add(toShopEntry(shop));
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return shops;
+        } finally {
+            GET_SHOPS_TIMER.recordSince(start);
         }
-        return shops;
     }
 
-    public void addShop(String name, String item, String description, boolean isAdminShop) {
-        String sql = "INSERT INTO shops(name, item, description, isAdminShop) VALUES(?, ?, ?, ?)";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setString(1, name);
-            pstmt.setString(2, item);
-            pstmt.setString(3, description);
-            pstmt.setBoolean(4, isAdminShop);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    public ShopEntry getShopEntry(String shopName) {
+        ShopCatalog.ShopRecord shop = catalog.getShop(shopName);
+        return shop == null ? null : toShopEntry(shop);
     }
 
-    public boolean shopExists(String name) {
-        String sql = "SELECT COUNT(*) FROM shops WHERE name = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setString(1, name);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1) > 0;
+    public ShopEntry getShopEntry(int shopId) {
+        ShopCatalog.ShopRecord shop = catalog.getShop(shopId);
+        return shop == null ? null : toShopEntry(shop);
+    }
+
+    private ShopEntry toShopEntry(ShopCatalog.ShopRecord shop) {
+        ShopEntry entry = new ShopEntry(shop.name, shop.description, shop.isAdminShop, shop.item);
+        entry.version = shop.version;
+        entry.listingCount = catalog.countItemsOfShop(shop.id);
+        entry.totalStock = shop.totalStock.get();
+        entry.tradeCount = shop.tradeCount.get();
+        entry.lastTradeAt = shop.lastTradeAt;
+        return entry;
+    }
+
+    public List<ShopEntry> getUserShops(String excludeShopName) {
+        long start = System.nanoTime();
+        try {
+            List<ShopEntry> shops = new ArrayList<>();
+            for (ShopCatalog.ShopRecord shop : catalog.getShops()) {
+                if (!shop.isAdminShop && !shop.name.equals(excludeShopName)) {
+                    shops.add(new ShopEntry(shop.name, shop.description, shop.isAdminShop, shop.item));
+                }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return shops;
+        } finally {
+            GET_USER_SHOPS_TIMER.recordSince(start);
+        }
+    }
+
+    public CompletableFuture<Void> addShop(String name, String item, String description, boolean isAdminShop) {
+        int shopId = catalog.nextShopId();
+        catalog.putShop(new ShopCatalog.ShopRecord(shopId, name, description, isAdminShop, item));
+        if (searchIndex != null) {
+            searchIndex.indexShop(shopId);
         }
-        return false;
+
+        String sql = "INSERT INTO shops(id, name, item, description, isAdminShop) VALUES(?, ?, ?, ?, ?)";
+        return write("addShop", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setInt(1, shopId);
+            pstmt.setString(2, name);
+            pstmt.setString(3, item);
+            pstmt.setString(4, description);
+            pstmt.setBoolean(5, isAdminShop);
+            pstmt.executeUpdate();
+        });
+    }
+
+    public boolean shopExists(String name) {
+        return catalog.getShop(name) != null;
     }
 
     public boolean isAdminShop(String name) {
-        String sql = "SELECT isAdminShop FROM shops WHERE name = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setString(1, name);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getBoolean("isAdminShop");
+        ShopCatalog.ShopRecord shop = catalog.getShop(name);
+        return shop != null && shop.isAdminShop;
+    }
+
+    public int getShopIdByName(String name) {
+        ShopCatalog.ShopRecord shop = catalog.getShop(name);
+        return shop != null ? shop.id : -1;
+    }
+
+    public String getItemCreator(Integer itemId) {
+        ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+        return item != null ? item.creator : null;
+    }
+
+    public List<ShopItemEntry> getShopItems(String shopName) {
+        long start = System.nanoTime();
+        try {
+            ShopCatalog.ShopRecord shop = catalog.getShop(shopName);
+            if (shop == null) {
+                return new ArrayList<>();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return toEntries(catalog.getItemsOfShop(shop.id));
+        } finally {
+            GET_SHOP_ITEMS_TIMER.recordSince(start);
         }
-        return false;
     }
 
-    public int getShopIdByName(String name) {
-        String sql = "SELECT id FROM shops WHERE name = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setString(1, name);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt("id");
+    /**
+     * Keyset page of a shop's items: up to {@code limit} listings with ids
+     * greater than {@code afterItemId} (0 for the first page). Only the
+     * returned listings are decoded.
+     */
+    public List<ShopItemEntry> getShopItemsAfter(String shopName, int afterItemId, int limit) {
+        long start = System.nanoTime();
+        try {
+            ShopCatalog.ShopRecord shop = catalog.getShop(shopName);
+            if (shop == null) {
+                return new ArrayList<>();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return toEntries(catalog.getItemsOfShopAfter(shop.id, afterItemId, limit));
+        } finally {
+            GET_SHOP_ITEMS_AFTER_TIMER.recordSince(start);
         }
-        return -1;
     }
 
-    public String getItemCreator(Integer itemId) {
-        String sql = "SELECT creator FROM items WHERE id = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setInt(1, itemId);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getString("creator");
+    /**
+     * Keyset page of a shop's items: up to {@code limit} listings with ids
+     * less than {@code beforeItemId}, in id order.
+     */
+    public List<ShopItemEntry> getShopItemsBefore(String shopName, int beforeItemId, int limit) {
+        long start = System.nanoTime();
+        try {
+            ShopCatalog.ShopRecord shop = catalog.getShop(shopName);
+            if (shop == null) {
+                return new ArrayList<>();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return toEntries(catalog.getItemsOfShopBefore(shop.id, beforeItemId, limit));
+        } finally {
+            GET_SHOP_ITEMS_BEFORE_TIMER.recordSince(start);
         }
-        return null;
     }
 
-    public List<ShopItemEntry> getShopItems(String shopName) {
-        List<ShopItemEntry> items = new ArrayList<>();
-        String sql = "SELECT i.id, i.nbtData, i.quantity, i.isSelling, i.price, i.creator " +
-                    "FROM items i " +
-                    "JOIN shops s ON i.shopId = s.id " +
-                    "WHERE s.name = ?";
-
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setString(1, shopName);
-            ResultSet rs = pstmt.executeQuery();
-
-            while (rs.next()) {
-                String nbtData = rs.getString("nbtData");
-                ItemStack itemStack = ItemStack.CODEC.decode(Simpleshop.jsonops, JsonParser.parseString(nbtData))
-                    .result()
-                    .map(Pair::getFirst)
-                    .orElse(ItemStack.EMPTY);
-                items.add(new ShopItemEntry(
-                    rs.getInt("id"),
-                    itemStack,
-                    rs.getBigDecimal("price"),
-                    rs.getInt("quantity"),
-                    rs.getBoolean("isSelling"),
-                    rs.getString("creator")
-                ));
+    public int getShopItemCount(String shopName) {
+        ShopCatalog.ShopRecord shop = catalog.getShop(shopName);
+        return shop == null ? 0 : catalog.countItemsOfShop(shop.id);
+    }
+
+    /**
+     * Decodes the page after {@code afterItemId} into the item cache on a
+     * background thread, so turning the page does not wait on decoding.
+     */
+    public void prefetchShopItems(String shopName, int afterItemId, int limit) {
+        ShopCatalog.ShopRecord shop = catalog.getShop(shopName);
+        if (shop == null) {
+            return;
+        }
+        List<ShopCatalog.ItemRecord> items = catalog.getItemsOfShopAfter(shop.id, afterItemId, limit);
+        if (items.isEmpty()) {
+            return;
+        }
+        CompletableFuture.runAsync(() -> {
+            for (ShopCatalog.ItemRecord item : items) {
+                getListingStack(item);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        });
+    }
+
+    private List<ShopItemEntry> toEntries(List<ShopCatalog.ItemRecord> records) {
+        List<ShopItemEntry> items = new ArrayList<>(records.size());
+        for (ShopCatalog.ItemRecord item : records) {
+            items.add(new ShopItemEntry(
+                item.id,
+                getListingStack(item),
+                item.price,
+                item.quantity,
+                item.isSelling,
+                item.creator
+            ));
         }
         return items;
     }
 
-    public boolean itemExists(Integer itemId) {
-        String sql = "SELECT COUNT(*) FROM items WHERE id = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setInt(1, itemId);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1) > 0;
+    /**
+     * Entries for the given listings, in the given order, skipping any that
+     * no longer exist.
+     */
+    public List<ShopItemEntry> getItemEntries(List<Integer> itemIds) {
+        List<ShopCatalog.ItemRecord> records = new ArrayList<>(itemIds.size());
+        for (Integer itemId : itemIds) {
+            ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+            if (item != null) {
+                records.add(item);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-        return false;
+        return toEntries(records);
+    }
+
+    public String getShopNameOfItem(Integer itemId) {
+        ShopCatalog.ShopRecord shop = catalog.getShopOfItem(itemId);
+        return shop != null ? shop.name : null;
+    }
+
+    /**
+     * Brings the price index up to date with a listing's price, stock or
+     * mode, and has open GUIs showing it patched at the end of the tick.
+     */
+    private void listingChanged(int itemId) {
+        priceIndex.refresh(itemId);
+        ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+        if (item != null) {
+            markViewers(itemId, item.shopId);
+        }
+    }
+
+    private void markViewers(int itemId, int shopId) {
+        ShopViewers current = viewers;
+        if (current != null) {
+            current.markChanged(itemId, shopId);
+        }
+    }
+
+    private void markShopViewers(int shopId) {
+        ShopViewers current = viewers;
+        if (current != null) {
+            current.markShopChanged(shopId);
+        }
     }
 
-    public void removeItem(Integer itemId) {
+    public boolean itemExists(Integer itemId) {
+        return catalog.getItem(itemId) != null;
+    }
+
+    public CompletableFuture<Void> removeItem(Integer itemId) {
+        ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+        catalog.removeItem(itemId);
+        itemStackCache.invalidate(itemId);
+        priceIndex.remove(itemId);
+        if (searchIndex != null) {
+            searchIndex.removeItem(itemId);
+        }
+        if (item != null) {
+            markViewers(itemId, item.shopId);
+        }
+
         String sql = "DELETE FROM items WHERE id = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+        return write("removeItem", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
             pstmt.setInt(1, itemId);
             pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        });
+    }
+
+    public CompletableFuture<Void> moveItem(Integer itemId, int targetShopId) {
+        ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+        int previousShopId = item != null ? item.shopId : targetShopId;
+        catalog.moveItem(itemId, targetShopId);
+        listingChanged(itemId);
+        markShopViewers(previousShopId);
+
+        String sql = "UPDATE items SET shopId = ? WHERE id = ?";
+        return write("moveItem", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setInt(1, targetShopId);
+            pstmt.setInt(2, itemId);
+            pstmt.executeUpdate();
+        });
     }
 
     public boolean isAdminShopByItemId(Integer itemId) {
-        String sql = "SELECT s.isAdminShop FROM shops s JOIN items i ON s.id = i.shopId WHERE i.id = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setInt(1, itemId);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getBoolean("isAdminShop");
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
-        return false;
+        ShopCatalog.ShopRecord shop = catalog.getShopOfItem(itemId);
+        return shop != null && shop.isAdminShop;
     }
 
     public ItemStack getItemStack(Integer itemId) {
-        String sql = "SELECT nbtData FROM items WHERE id = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setInt(1, itemId);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                String nbtJson = rs.getString("nbtData");
-                JsonElement element = JsonParser.parseString(nbtJson);
-                ItemStack itemStack = ItemStack.CODEC.decode(Simpleshop.jsonops, element)
-                    .result()
-                    .map(Pair::getFirst)
-                    .orElse(ItemStack.EMPTY);
-                
-                // Ensure item count is 1
-                if (!itemStack.isEmpty() && itemStack.getCount() > 1) {
-                    itemStack.setCount(1);
-                }
-                return itemStack;
+        long start = System.nanoTime();
+        try {
+            ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+            if (item == null) {
+                return ItemStack.EMPTY;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+
+            ItemStack itemStack = getListingStack(item);
+            // Ensure item count is 1
+            if (!itemStack.isEmpty() && itemStack.getCount() > 1) {
+                itemStack.setCount(1);
+            }
+            return itemStack;
+        } finally {
+            GET_ITEM_STACK_TIMER.recordSince(start);
         }
-        return ItemStack.EMPTY;
     }
 
-    public void addStockToItem(Integer itemId, int amount) {
-        String sql = "UPDATE items SET quantity = quantity + ? WHERE id = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setInt(1, amount);
-            pstmt.setInt(2, itemId);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+    private ItemStack getListingStack(ShopCatalog.ItemRecord item) {
+        byte[] nbtBlob = item.nbtBlob;
+        String nbtData = item.nbtData;
+        return itemStackCache.get(item.id, item.storedSize(), () -> ItemCodec.decode(nbtBlob, nbtData));
     }
 
-    public boolean isItemForSale(Integer itemId) {
-        String sql = "SELECT isSelling FROM items WHERE id = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setInt(1, itemId);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getBoolean("isSelling");
+    /**
+     * Replaces the JSON form of the given listings with their binary form, in
+     * a single transaction. Used by {@link NbtStorageMigrator}.
+     */
+    public CompletableFuture<Void> storeItemBlobs(Map<Integer, byte[]> blobs) {
+        for (Map.Entry<Integer, byte[]> entry : blobs.entrySet()) {
+            ShopCatalog.ItemRecord item = catalog.getItem(entry.getKey());
+            if (item != null) {
+                item.nbtBlob = entry.getValue();
+                item.nbtData = null;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-        return false;
+
+        String sql = "UPDATE items SET nbtBlob = ?, nbtData = NULL WHERE id = ?";
+        return write("storeItemBlobs", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
+            for (Map.Entry<Integer, byte[]> entry : blobs.entrySet()) {
+                pstmt.setBytes(1, entry.getValue());
+                pstmt.setInt(2, entry.getKey());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        });
     }
 
-    public int getItemQuantity(Integer itemId) {
-        String sql = "SELECT quantity FROM items WHERE id = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setInt(1, itemId);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt("quantity");
+    /**
+     * Moves stock for a trade in one step: checks the listing mode and the
+     * available stock, applies the change and appends a ledger row in the
+     * same transaction. The database repeats the checks in the UPDATE's
+     * WHERE clause, so the row is never driven below zero.
+     *
+     * @return the new stock level, or {@link #TRADE_REJECTED} if the listing
+     *         is gone, in the wrong mode, or does not hold enough stock
+     */
+    public int executeTrade(int itemId, TradeType type, int amount, String player) {
+        long start = System.nanoTime();
+        try {
+            ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+            if (item == null || amount <= 0) {
+                return TRADE_REJECTED;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+
+            int delta = type.sign * amount;
+            int newStock;
+            AppliedTrade trade;
+            synchronized (item) {
+                if (!canApply(item, type, delta)) {
+                    return TRADE_REJECTED;
+                }
+                catalog.adjustQuantity(item, delta);
+                newStock = item.quantity;
+                trade = new AppliedTrade(item, delta);
+                listingChanged(itemId);
+            }
+            if (type.isMarketTrade()) {
+                catalog.recordTrade(trade.shopId, System.currentTimeMillis());
+            }
+
+            boolean queued = persistenceQueue != null;
+            CompletableFuture<Void> stored = write("executeTrade", statements -> writeTrade(statements, itemId, trade.shopId, type, delta, trade.price, player))
+                    .whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            revertTrades(List.of(trade), type, queued ? player : null);
+                        }
+                    });
+            // A write run on this thread has already failed, so the caller can still back out
+            return !queued && stored.isCompletedExceptionally() ? TRADE_REJECTED : newStock;
+        } finally {
+            EXECUTE_TRADE_TIMER.recordSince(start);
         }
-        return 0;
     }
 
-    public BigDecimal getItemPrice(Integer itemId) {
-        String sql = "SELECT price FROM items WHERE id = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setInt(1, itemId);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getBigDecimal("price");
+    /**
+     * Applies the same kind of trade to several listings at once, keyed by
+     * item id. Either every line is applied or none is: the catalog changes
+     * are undone if any line is rejected, and the stored rows and ledger
+     * entries are written in a single transaction.
+     */
+    public boolean executeTrades(Map<Integer, Integer> amounts, TradeType type, String player) {
+        long start = System.nanoTime();
+        try {
+            List<AppliedTrade> applied = new ArrayList<>(amounts.size());
+            for (Map.Entry<Integer, Integer> line : amounts.entrySet()) {
+                ShopCatalog.ItemRecord item = catalog.getItem(line.getKey());
+                AppliedTrade trade = null;
+                if (item != null && line.getValue() > 0) {
+                    int delta = type.sign * line.getValue();
+                    synchronized (item) {
+                        if (canApply(item, type, delta)) {
+                            catalog.adjustQuantity(item, delta);
+                            trade = new AppliedTrade(item, delta);
+                            listingChanged(item.id);
+                        }
+                    }
+                }
+                if (trade == null) {
+                    for (AppliedTrade undo : applied) {
+                        synchronized (undo.item) {
+                            catalog.adjustQuantity(undo.item, -undo.delta);
+                            listingChanged(undo.item.id);
+                        }
+                    }
+                    return false;
+                }
+                applied.add(trade);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            if (type.isMarketTrade()) {
+                long now = System.currentTimeMillis();
+                for (AppliedTrade trade : applied) {
+                    catalog.recordTrade(trade.shopId, now);
+                }
+            }
+
+            boolean queued = persistenceQueue != null;
+            CompletableFuture<Void> stored = write("executeTrades", statements -> {
+                for (AppliedTrade trade : applied) {
+                    writeTrade(statements, trade.item.id, trade.shopId, type, trade.delta, trade.price, player);
+                }
+            }).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    revertTrades(applied, type, queued ? player : null);
+                }
+            });
+            return queued || !stored.isCompletedExceptionally();
+        } finally {
+            EXECUTE_TRADES_TIMER.recordSince(start);
         }
-        return BigDecimal.ZERO;
     }
 
-    public void removeStockFromItem(Integer itemId, int amount) {
-        String sql = "UPDATE items SET quantity = quantity - ? WHERE id = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setInt(1, amount);
-            pstmt.setInt(2, itemId);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+    private static class AppliedTrade {
+        final ShopCatalog.ItemRecord item;
+        final int delta;
+        final int shopId;
+        final BigDecimal price;
+
+        AppliedTrade(ShopCatalog.ItemRecord item, int delta) {
+            this.item = item;
+            this.delta = delta;
+            this.shopId = item.shopId;
+            this.price = item.price;
         }
     }
 
-    public Connection getConnection() {
-        try {
-            if (connection == null || connection.isClosed()) {
-                connect();
+    /**
+     * Undoes the catalog side of trades whose write failed, so the catalog
+     * goes back to matching the database. A non-null {@code player} already
+     * had the trade go through and is told about it.
+     */
+    private void revertTrades(List<AppliedTrade> trades, TradeType type, String player) {
+        for (AppliedTrade trade : trades) {
+            synchronized (trade.item) {
+                catalog.adjustQuantity(trade.item, -trade.delta);
+                listingChanged(trade.item.id);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            connect();
+            if (type.isMarketTrade()) {
+                catalog.revertTrade(trade.shopId);
+            }
+        }
+        Simpleshop.LOGGER.error("Failed to store {} trade on {} listing(s); stock restored", type, trades.size());
+        NotificationManager current = notifications;
+        if (player != null && current != null) {
+            current.notifyTradeFailed(player);
+        }
+    }
+
+    private static boolean canApply(ShopCatalog.ItemRecord item, TradeType type, int delta) {
+        if (type.expectedMode != null && item.isSelling != type.expectedMode) {
+            return false;
         }
-        return this.connection;
+        return item.quantity + delta >= 0;
     }
 
-    public void updateItemPrice(int itemId, BigDecimal price) {
+    private static void writeTrade(StatementCache statements, int itemId, int shopId, TradeType type, int delta, BigDecimal price, String player) throws SQLException {
+        PreparedStatement update = statements.prepare(type.expectedMode == null
+                ? "UPDATE items SET quantity = quantity + ? WHERE id = ? AND quantity >= ?"
+                : "UPDATE items SET quantity = quantity + ? WHERE id = ? AND quantity >= ? AND isSelling = ?");
+        update.setInt(1, delta);
+        update.setInt(2, itemId);
+        update.setInt(3, Math.max(0, -delta));
+        if (type.expectedMode != null) {
+            update.setBoolean(4, type.expectedMode);
+        }
+        if (update.executeUpdate() != 1) {
+            throw new SQLException("Trade on item " + itemId + " no longer matches the stored listing");
+        }
+
+        PreparedStatement ledger = statements.prepare("INSERT INTO trades (item_id, shop_id, player, type, quantity, price) VALUES (?, ?, ?, ?, ?, ?)");
+        ledger.setInt(1, itemId);
+        ledger.setInt(2, shopId);
+        ledger.setString(3, player);
+        ledger.setString(4, type.name());
+        ledger.setInt(5, delta);
+        ledger.setBigDecimal(6, price);
+        ledger.executeUpdate();
+
+        if (type.isMarketTrade()) {
+            PreparedStatement stats = statements.prepare("INSERT INTO shop_stats (shop_id, trade_count, last_trade_at) VALUES (?, 1, CURRENT_TIMESTAMP) " +
+                    "ON CONFLICT (shop_id) DO UPDATE SET trade_count = trade_count + 1, last_trade_at = excluded.last_trade_at");
+            stats.setInt(1, shopId);
+            stats.executeUpdate();
+        }
+
+        int volume = Math.abs(delta);
+        BigDecimal value = price != null ? price.multiply(BigDecimal.valueOf(volume)) : null;
+        for (String sql : ROLLUP_SQL) {
+            PreparedStatement rollup = statements.prepare(sql);
+            rollup.setInt(1, itemId);
+            rollup.setString(2, type.name());
+            rollup.setInt(3, volume);
+            rollup.setBigDecimal(4, price);
+            rollup.setBigDecimal(5, price);
+            rollup.setBigDecimal(6, value);
+            rollup.executeUpdate();
+        }
+    }
+
+    private static String rollupSql(String table, String bucket) {
+        return "INSERT INTO " + table + " (item_id, bucket, type, trades, volume, min_price, max_price, value_sum) " +
+                "VALUES (?, " + bucket + ", ?, 1, ?, ?, ?, ?) " +
+                "ON CONFLICT (item_id, bucket, type) DO UPDATE SET " +
+                "trades = trades + 1, " +
+                "volume = volume + excluded.volume, " +
+                "min_price = MIN(min_price, excluded.min_price), " +
+                "max_price = MAX(max_price, excluded.max_price), " +
+                "value_sum = value_sum + excluded.value_sum";
+    }
+
+    public static class TradeSummary {
+        public final int trades;
+        public final int volume;
+        public final BigDecimal minPrice;
+        public final BigDecimal maxPrice;
+        public final BigDecimal averagePrice;
+
+        public TradeSummary(int trades, int volume, BigDecimal minPrice, BigDecimal maxPrice, BigDecimal averagePrice) {
+            this.trades = trades;
+            this.volume = volume;
+            this.minPrice = minPrice;
+            this.maxPrice = maxPrice;
+            this.averagePrice = averagePrice;
+        }
+    }
+
+    /**
+     * Purchases and sales of a listing over the last {@code days} days
+     * (including today), read from the daily rollup rather than the ledger.
+     */
+    public TradeSummary getTradeSummary(int itemId, int days) {
+        String sql = "SELECT COALESCE(SUM(trades), 0), COALESCE(SUM(volume), 0), MIN(min_price), MAX(max_price), SUM(value_sum) " +
+                "FROM trade_rollups_daily WHERE item_id = ? AND bucket >= date('now', ?) AND type IN ('BUY', 'SELL')";
+        TradeSummary empty = new TradeSummary(0, 0, null, null, null);
+        return read("getTradeSummary", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setInt(1, itemId);
+            pstmt.setString(2, "-" + (days - 1) + " days");
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next() || rs.getInt(1) == 0) {
+                    return empty;
+                }
+                int volume = rs.getInt(2);
+                BigDecimal valueSum = rs.getBigDecimal(5);
+                BigDecimal average = valueSum != null && volume > 0
+                        ? valueSum.divide(BigDecimal.valueOf(volume), 2, RoundingMode.HALF_UP)
+                        : null;
+                return new TradeSummary(rs.getInt(1), volume, rs.getBigDecimal(3), rs.getBigDecimal(4), average);
+            }
+        }, empty);
+    }
+
+    public boolean isItemForSale(Integer itemId) {
+        ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+        return item != null && item.isSelling;
+    }
+
+    public int getItemQuantity(Integer itemId) {
+        ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+        return item != null ? item.quantity : 0;
+    }
+
+    public BigDecimal getItemPrice(Integer itemId) {
+        ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+        return item != null ? item.price : BigDecimal.ZERO;
+    }
+
+    public CompletableFuture<Void> updateItemPrice(int itemId, BigDecimal price) {
+        ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+        if (item != null) {
+            item.price = price;
+            listingChanged(itemId);
+        }
+
         String sql = "UPDATE items SET price = ? WHERE id = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+        return write("updateItemPrice", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
             pstmt.setBigDecimal(1, price);
             pstmt.setInt(2, itemId);
             pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        });
     }
 
-    public void toggleItemMode(int itemId) {
+    public CompletableFuture<Void> toggleItemMode(int itemId) {
+        ShopCatalog.ItemRecord item = catalog.getItem(itemId);
+        if (item != null) {
+            item.isSelling = !item.isSelling;
+            listingChanged(itemId);
+        }
+
         String sql = "UPDATE items SET isSelling = NOT isSelling WHERE id = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+        return write("toggleItemMode", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
             pstmt.setInt(1, itemId);
             pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        });
     }
 
-    public void updateShopDescription(String shopName, String description) {
+    public CompletableFuture<Void> updateShopDescription(String shopName, String description) {
+        ShopCatalog.ShopRecord shop = catalog.getShop(shopName);
+        if (shop != null) {
+            shop.description = description;
+            catalog.touchShop(shop);
+            if (searchIndex != null) {
+                searchIndex.indexShop(shop.id);
+            }
+        }
+
         String sql = "UPDATE shops SET description = ? WHERE name = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+        return write("updateShopDescription", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
             pstmt.setString(1, description);
             pstmt.setString(2, shopName);
             pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        });
     }
 
-    public void updateShopName(String oldName, String newName) {
+    public CompletableFuture<Void> updateShopName(String oldName, String newName) {
+        ShopCatalog.ShopRecord shop = catalog.getShop(oldName);
+        catalog.renameShop(oldName, newName);
+        if (shop != null) {
+            markShopViewers(shop.id);
+        }
+
         String sql = "UPDATE shops SET name = ? WHERE name = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+        return write("updateShopName", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
             pstmt.setString(1, newName);
             pstmt.setString(2, oldName);
             pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        });
     }
 
-    public void updateShopIcon(String shopName, String itemNbtData) {
+    public CompletableFuture<Void> updateShopIcon(String shopName, String itemNbtData) {
+        ShopCatalog.ShopRecord shop = catalog.getShop(shopName);
+        if (shop != null) {
+            shop.item = itemNbtData;
+            catalog.touchShop(shop);
+            markShopViewers(shop.id);
+        }
+
         String sql = "UPDATE shops SET item = ? WHERE name = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
+        return write("updateShopIcon", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
             pstmt.setString(1, itemNbtData);
             pstmt.setString(2, shopName);
             pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        });
     }
 
     public void close() {
-        try {
-            if (connection != null) {
-                connection.close();
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        // Flush queued writes before the connection goes away
+        if (persistenceQueue != null) {
+            persistenceQueue.shutdown();
+            persistenceQueue = null;
+        }
+        if (writeStatements != null) {
+            writeStatements.close();
+        }
+        StatementCache statements;
+        while ((statements = readPool.poll()) != null) {
+            statements.close();
         }
     }
 
-    public void addItem(int shopId, String nbtData, int quantity, boolean isSelling, BigDecimal price, String creator) {
-        String sql = "INSERT INTO items(shopId, nbtData, quantity, isSelling, price, creator) VALUES(?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setInt(1, shopId);
-            pstmt.setString(2, nbtData);
-            pstmt.setInt(3, quantity);
-            pstmt.setBoolean(4, isSelling);
-            pstmt.setBigDecimal(5, price);
-            pstmt.setString(6, creator);
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+    public CompletableFuture<Void> addItem(int shopId, ItemStack itemStack, int quantity, boolean isSelling, BigDecimal price, String creator) {
+        byte[] nbtBlob = ItemCodec.encode(itemStack);
+        if (nbtBlob == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Item cannot be serialized"));
+        }
+
+        int itemId = catalog.nextItemId();
+        catalog.putItem(new ShopCatalog.ItemRecord(itemId, shopId, null, nbtBlob, quantity, isSelling, price, creator));
+        itemStackCache.invalidate(itemId);
+        priceIndex.add(itemId, Registries.ITEM.getId(itemStack.getItem()).toString());
+        if (searchIndex != null) {
+            searchIndex.indexItem(itemId);
         }
+        markViewers(itemId, shopId);
+
+        String sql = "INSERT INTO items(id, shopId, nbtBlob, quantity, isSelling, price, creator) VALUES(?, ?, ?, ?, ?, ?, ?)";
+        return write("addItem", statements -> {
+            PreparedStatement pstmt = statements.prepare(sql);
+            pstmt.setInt(1, itemId);
+            pstmt.setInt(2, shopId);
+            pstmt.setBytes(3, nbtBlob);
+            pstmt.setInt(4, quantity);
+            pstmt.setBoolean(5, isSelling);
+            pstmt.setBigDecimal(6, price);
+            pstmt.setString(7, creator);
+            pstmt.executeUpdate();
+        });
     }
 
     public boolean isShopEmpty(String shopName) {
-        String sql = "SELECT COUNT(*) FROM items i JOIN shops s ON i.shopId = s.id WHERE s.name = ?";
-        try (PreparedStatement pstmt = getConnection().prepareStatement(sql)) {
-            pstmt.setString(1, shopName);
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1) == 0;
+        ShopCatalog.ShopRecord shop = catalog.getShop(shopName);
+        return shop == null || catalog.countItemsOfShop(shop.id) == 0;
+    }
+
+    public CompletableFuture<Void> deleteShop(String shopName) {
+        ShopCatalog.ShopRecord shop = catalog.getShop(shopName);
+        if (shop != null) {
+            List<Integer> itemIds = new ArrayList<>();
+            for (ShopCatalog.ItemRecord item : catalog.getItemsOfShop(shop.id)) {
+                itemStackCache.invalidate(item.id);
+                priceIndex.remove(item.id);
+                itemIds.add(item.id);
+                markViewers(item.id, shop.id);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            if (searchIndex != null) {
+                searchIndex.removeShop(shop.id, itemIds);
+            }
+            markShopViewers(shop.id);
         }
-        return false;
-    }
+        catalog.removeShop(shopName);
 
-    public void deleteShop(String shopName) {
         // First delete all items in the shop
         String deleteItemsSql = "DELETE FROM items WHERE shopId IN (SELECT id FROM shops WHERE name = ?)";
         String deleteShopSql = "DELETE FROM shops WHERE name = ?";
-        
-        try {
+        String deleteStatsSql = "DELETE FROM shop_stats WHERE shop_id IN (SELECT id FROM shops WHERE name = ?)";
+
+        return write("deleteShop", statements -> {
             // Delete items first
-            try (PreparedStatement pstmt = getConnection().prepareStatement(deleteItemsSql)) {
-                pstmt.setString(1, shopName);
-                pstmt.executeUpdate();
-            }
-            
+            PreparedStatement deleteItems = statements.prepare(deleteItemsSql);
+            deleteItems.setString(1, shopName);
+            deleteItems.executeUpdate();
+
+            PreparedStatement deleteStats = statements.prepare(deleteStatsSql);
+            deleteStats.setString(1, shopName);
+            deleteStats.executeUpdate();
+
             // Then delete the shop
-            try (PreparedStatement pstmt = getConnection().prepareStatement(deleteShopSql)) {
-                pstmt.setString(1, shopName);
-                pstmt.executeUpdate();
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+            PreparedStatement deleteShop = statements.prepare(deleteShopSql);
+            deleteShop.setString(1, shopName);
+            deleteShop.executeUpdate();
+        });
     }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package com.iruanp.simpleshop;
 
 import eu.pb4.sgui.api.gui.SimpleGui;
+import eu.pb4.sgui.api.elements.GuiElement;
 import eu.pb4.sgui.api.elements.GuiElementBuilder;
 import eu.pb4.sgui.api.gui.SignGui;
 import net.minecraft.item.ItemStack;
@@ -13,38 +14,59 @@ import me.lucko.fabric.api.permissions.v0.Permissions;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
+import com.iruanp.simpleshop.service.InventoryPlan;
 import com.iruanp.simpleshop.service.InventoryService;
 import com.iruanp.simpleshop.service.ShopEntry;
 import com.iruanp.simpleshop.service.ShopItemEntry;
 import com.iruanp.simpleshop.service.ShopService;
+import com.iruanp.simpleshop.service.ShoppingCart;
 import com.mojang.datafixers.util.Pair;
 import com.mojang.serialization.JsonOps;
-import eu.pb4.common.economy.api.CommonEconomy;
 import eu.pb4.common.economy.api.EconomyAccount;
 
 public class ShopGUI {
     private static final int ROWS = 6;
     private static final int SLOTS_PER_PAGE = (ROWS - 1) * 9;
+    private static final Metrics.Timer SHOP_LIST_TIMER = Metrics.timer("gui.openShopList");
+    private static final Metrics.Timer SHOP_ITEMS_TIMER = Metrics.timer("gui.openShopItems");
+    private static final Metrics.Timer CART_TIMER = Metrics.timer("gui.openCart");
+    private static final Metrics.Timer ITEM_DETAILS_TIMER = Metrics.timer("gui.openItemDetails");
+    private static final Metrics.Timer SHOP_SETTINGS_TIMER = Metrics.timer("gui.openShopSettings");
+    private static final Metrics.Timer MOVE_ITEM_TIMER = Metrics.timer("gui.openMoveItemDialog");
+    private static final Metrics.Timer SEARCH_TIMER = Metrics.timer("gui.openSearch");
+    private static final int MAX_SEARCH_RESULTS = SLOTS_PER_PAGE * 6;
+    private static final int HISTORY_DAYS = 7;
     private ShopDatabase database;
     private ShopService shopService;
     private InventoryService inventoryService;
+    private final ShopListCache shopListCache = new ShopListCache();
+    private final ShopViewers viewers;
 
-    public ShopGUI(ShopDatabase database, ShopService shopService) {
+    public ShopGUI(ShopDatabase database, ShopService shopService, ShopViewers viewers) {
         this.database = database;
         this.shopService = shopService;
         this.inventoryService = new InventoryService();
+        this.viewers = viewers;
+    }
+
+    public double getShopListHitRate() {
+        return shopListCache.getHitRate();
+    }
+
+    public void clearCaches() {
+        shopListCache.clear();
     }
 
     public void openShopList(ServerPlayerEntity player, int page) {
+        long start = ShopWatchdog.begin(player.getName().getString());
         List<ShopEntry> shops = shopService.getShops();
         int maxPages = (shops.size() + SLOTS_PER_PAGE - 1) / SLOTS_PER_PAGE;
         if (maxPages == 0)
@@ -59,58 +81,33 @@ public class ShopGUI {
 
         int startIndex = page * SLOTS_PER_PAGE;
         int endIndex = Math.min(startIndex + SLOTS_PER_PAGE, shops.size());
+        boolean isAdmin = Permissions.check(player.getCommandSource(), "Simpleshop.Admin", 2);
+        shopListCache.prune(shops);
+        ShopViewers.Registration registration = viewers.register(player, gui);
 
         for (int i = startIndex; i < endIndex; i++) {
             ShopEntry shop = shops.get(i);
             int slot = i - startIndex;
-            JsonElement shopItem = JsonParser.parseString(shop.item);
-            ItemStack shopItemStack = ItemStack.CODEC.decode(JsonOps.INSTANCE, shopItem)
-                    .resultOrPartial(Simpleshop.LOGGER::error)
-                    .map(Pair::getFirst)
-                    .orElse(null);
-
-            GuiElementBuilder element = new GuiElementBuilder()
-                    .setItem(shopItemStack.getItem())
-                    .setName(Text.literal(shop.name))
-                    .addLoreLine(Text.literal(I18n.translate("gui.shop.type", shop.isAdminShop ? 
-                            I18n.translate("gui.shop.type.admin").getString() : 
-                            I18n.translate("gui.shop.type.player").getString()).getString())
-                            .formatted(Formatting.GRAY));
-
-            if (!shop.description.isEmpty()) {
-                element.addLoreLine(Text.empty());
-                element.addLoreLine(I18n.translate("gui.shop.description").formatted(Formatting.YELLOW));
-                element.addLoreLine(Text.literal(shop.description).formatted(Formatting.GRAY));
-            }
-
-            element.addLoreLine(Text.empty());
-            element.addLoreLine(I18n.translate("gui.shop.click_view").formatted(Formatting.GREEN));
-            element.addLoreLine(I18n.translate("gui.shop.shift_edit").formatted(Formatting.YELLOW));
 
-            if (Permissions.check(player.getCommandSource(), "Simpleshop.Admin", 2)) {
-                element.addLoreLine(Text.empty());
-                element.addLoreLine(I18n.translate("gui.shop.right_edit").formatted(Formatting.GOLD));
+            gui.setSlot(slot, buildShopElement(player, shop, isAdmin));
+            ShopCatalog.ShopRecord record = database.getCatalog().getShop(shop.name);
+            if (record == null) {
+                continue;
             }
-
-            element.setCallback((index, type, action) -> {
-                if (type.shift) {
-                    if (Permissions.check(player.getCommandSource(), "Simpleshop.Admin", 2)) {
-                        openDescriptionEditor(player, shop.name);
-                    } else {
-                        player.sendMessage(I18n.translate("item.no_permission", "edit").formatted(Formatting.RED), false);
-                    }
-                } else if (type.isRight && Permissions.check(player.getCommandSource(), "Simpleshop.Admin", 2)) {
-                    openShopSettings(player, shop.name);
+            // Watched by id so the slot follows the shop through a rename
+            int shopId = record.id;
+            registration.watchShop(shopId, () -> {
+                ShopEntry current = database.getShopEntry(shopId);
+                if (current == null) {
+                    gui.clearSlot(slot);
                 } else {
-                    openShopItems(player, shop.name, 0);
+                    gui.setSlot(slot, buildShopElement(player, current, isAdmin));
                 }
             });
-
-            gui.setSlot(slot, element.build());
         }
 
         // Add create shop buttons for admins
-        if (Permissions.check(player.getCommandSource(), "Simpleshop.Admin", 2)) {
+        if (isAdmin) {
             // Create normal shop button
             gui.setSlot(SLOTS_PER_PAGE + 3, new GuiElementBuilder(Items.CHEST)
                     .setName(I18n.translate("gui.shop.create_normal").formatted(Formatting.GREEN))
@@ -133,7 +130,26 @@ public class ShopGUI {
         }
 
         addNavigationButtons(gui, player, page, maxPages);
+        final int currentPage = page;
+        addCartButton(gui, player, () -> openShopList(player, currentPage));
         gui.open();
+        SHOP_LIST_TIMER.recordSince(start);
+    }
+
+    private GuiElement buildShopElement(ServerPlayerEntity player, ShopEntry shop, boolean isAdmin) {
+        return new GuiElement(shopListCache.get(shop, isAdmin), (index, type, action) -> {
+            if (type.shift) {
+                if (isAdmin) {
+                    openDescriptionEditor(player, shop.name);
+                } else {
+                    player.sendMessage(I18n.translate("item.no_permission", "edit").formatted(Formatting.RED), false);
+                }
+            } else if (type.isRight && isAdmin) {
+                openShopSettings(player, shop.name);
+            } else {
+                openShopItems(player, shop.name);
+            }
+        });
     }
 
     private void openDescriptionEditor(ServerPlayerEntity player, String shopName) {
@@ -162,70 +178,65 @@ public class ShopGUI {
         signGui.open();
     }
 
-    private void openShopItems(ServerPlayerEntity player, String shopName, int page) {
-        List<ShopItemEntry> items = shopService.getShopItems(shopName);
-        int maxPages = (items.size() + SLOTS_PER_PAGE - 1) / SLOTS_PER_PAGE;
+    private void openShopItems(ServerPlayerEntity player, String shopName) {
+        openShopItems(player, shopName, 0, 0, true);
+    }
+
+    /**
+     * Opens a page of a shop's items. Pages are addressed by keyset: going
+     * forward shows the items after {@code anchorId}, going back the items
+     * before it, so only the displayed listings are ever decoded.
+     */
+    private void openShopItems(ServerPlayerEntity player, String shopName, int page, int anchorId, boolean forward) {
+        long start = ShopWatchdog.begin(player.getName().getString());
+        int maxPages = (shopService.getShopItemCount(shopName) + SLOTS_PER_PAGE - 1) / SLOTS_PER_PAGE;
         if (maxPages == 0)
             maxPages = 1;
-        if (page < 0)
-            page = 0;
-        if (page >= maxPages)
-            page = maxPages - 1;
+
+        List<ShopItemEntry> items = forward
+                ? shopService.getShopItemsAfter(shopName, anchorId, SLOTS_PER_PAGE)
+                : shopService.getShopItemsBefore(shopName, anchorId, SLOTS_PER_PAGE);
+        if (page > 0 && (items.isEmpty() || (!forward && items.size() < SLOTS_PER_PAGE))) {
+            // Listings were removed under us; start over from the first page
+            openShopItems(player, shopName);
+            return;
+        }
+        page = Math.min(page, maxPages - 1);
 
         SimpleGui gui = new SimpleGui(ScreenHandlerType.GENERIC_9X6, player, false);
         gui.setTitle(I18n.translate("gui.item.details", shopName + " - Page " + (page + 1) + "/" + maxPages));
 
-        int startIndex = page * SLOTS_PER_PAGE;
-        int endIndex = Math.min(startIndex + SLOTS_PER_PAGE, items.size());
-
-        for (int i = startIndex; i < endIndex; i++) {
-            ShopItemEntry item = items.get(i);
-            int slot = i - startIndex;
-
-            GuiElementBuilder element = new GuiElementBuilder(item.itemStack.copy());
-            element.addLoreLine(Text.empty());
-
-            if (item.isSelling) {
-                element.addLoreLine(I18n.translate("item.price.buy", Simpleshop.getInstance().formatPrice(item.price))
-                        .formatted(Formatting.GREEN));
-                element.addLoreLine(I18n.translate("item.stock.quantity", item.quantity)
-                        .formatted(Formatting.AQUA));
-            } else {
-                element.addLoreLine(I18n.translate("item.price.sell", Simpleshop.getInstance().formatPrice(item.price))
-                        .formatted(Formatting.YELLOW));
-            }
-
+        boolean isAdminShop = database.isAdminShop(shopName);
+        PlayerNameCache playerNames = Simpleshop.getInstance().getPlayerNames();
+        List<UUID> unresolved = new ArrayList<>();
+        ShopViewers.Registration registration = viewers.register(player, gui);
+        for (int slot = 0; slot < items.size(); slot++) {
+            ShopItemEntry item = items.get(slot);
+            String creatorName = null;
             // Add creator info if not an admin shop
-            if (!shopService.isAdminShop(shopName) && item.creator != null) {
-                String creatorName = PlayerUtils.getPlayerName(UUID.fromString(item.creator));
-                if (creatorName != null) {
-                    element.addLoreLine(Text.empty());
-                    element.addLoreLine(I18n.translate("gui.item.creator", creatorName).formatted(Formatting.GRAY));
+            if (!isAdminShop && item.creator != null) {
+                UUID creator = UUID.fromString(item.creator);
+                creatorName = playerNames.getCached(creator);
+                if (creatorName == null) {
+                    unresolved.add(creator);
                 }
             }
-
-            element.addLoreLine(Text.empty());
-            element.addLoreLine(I18n.translate("gui.item.click_details").formatted(Formatting.GRAY));
-            element.addLoreLine(I18n.translate("gui.item.click_quick_action").formatted(Formatting.GOLD));
-
-            final int itemId = item.id;
-            element.setCallback((index, type, action) -> {
-                if (type.isLeft) {
-                    openItemDetails(player, shopName, itemId);
-                } else if (type.isRight) {
-                    if (item.isSelling) {
-                        openQuickBuyDialog(player, itemId, shopName);
-                    } else {
-                        openQuickSellDialog(player, itemId, shopName);
-                    }
+            gui.setSlot(slot, buildItemElement(player, gui, shopName, item, creatorName).build());
+
+            final int itemSlot = slot;
+            registration.watchItem(item.id, () -> {
+                ShopItemEntry current = getCurrentEntry(item.id, shopName);
+                if (current == null) {
+                    gui.clearSlot(itemSlot);
+                    return;
                 }
+                String name = !isAdminShop && current.creator != null
+                        ? playerNames.getCached(UUID.fromString(current.creator)) : null;
+                gui.setSlot(itemSlot, buildItemElement(player, gui, shopName, current, name).build());
             });
-
-            gui.setSlot(slot, element.build());
         }
 
         // Add Create Item button if player has permission
-        boolean isAdminShop = database.isAdminShop(shopName);
         if ((!isAdminShop && Permissions.check(player.getCommandSource(), "Simpleshop.Use", 0)) || 
             (isAdminShop && Permissions.check(player.getCommandSource(), "Simpleshop.Admin", 2))) {
             gui.setSlot(SLOTS_PER_PAGE + 0, new GuiElementBuilder(Items.NETHER_STAR)
@@ -244,11 +255,113 @@ public class ShopGUI {
                 .setCallback((index, type, action) -> openShopList(player, 0))
                 .build());
 
-        addNavigationButtons(gui, player, page, maxPages, shopName);
+        final int currentPage = page;
+        if (page > 0) {
+            int firstId = items.get(0).id;
+            gui.setSlot(SLOTS_PER_PAGE + 3, new GuiElementBuilder()
+                    .setItem(Items.ARROW)
+                    .setName(I18n.translate("gui.shop.prev_page").formatted(Formatting.YELLOW))
+                    .setCallback((index, type, action) -> {
+                        openShopItems(player, shopName, currentPage - 1, firstId, false);
+                    })
+                    .build());
+        }
+
+        if (page < maxPages - 1 && !items.isEmpty()) {
+            int lastId = items.get(items.size() - 1).id;
+            gui.setSlot(SLOTS_PER_PAGE + 5, new GuiElementBuilder()
+                    .setItem(Items.ARROW)
+                    .setName(I18n.translate("gui.shop.next_page").formatted(Formatting.YELLOW))
+                    .setCallback((index, type, action) -> {
+                        openShopItems(player, shopName, currentPage + 1, lastId, true);
+                    })
+                    .build());
+            shopService.prefetchShopItems(shopName, lastId, SLOTS_PER_PAGE);
+        }
+
+        addCartButton(gui, player, () -> openShopItems(player, shopName));
         gui.open();
+        SHOP_ITEMS_TIMER.recordSince(start);
+
+        // Names not cached yet are looked up off-thread and patched into the open page
+        if (!unresolved.isEmpty()) {
+            playerNames.prefetch(unresolved).thenRunAsync(() -> {
+                if (!gui.isOpen()) {
+                    return;
+                }
+                for (int slot = 0; slot < items.size(); slot++) {
+                    ShopItemEntry item = items.get(slot);
+                    if (item.creator == null) {
+                        continue;
+                    }
+                    UUID creator = UUID.fromString(item.creator);
+                    String creatorName = playerNames.getCached(creator);
+                    if (creatorName != null && unresolved.contains(creator)) {
+                        ShopItemEntry current = getCurrentEntry(item.id, shopName);
+                        if (current != null) {
+                            gui.setSlot(slot, buildItemElement(player, gui, shopName, current, creatorName).build());
+                        }
+                    }
+                }
+            }, Simpleshop.getInstance().serverInstance);
+        }
+    }
+
+    /**
+     * The listing as it is now, or null if it was removed or moved out of the
+     * shop since the page was opened.
+     */
+    private ShopItemEntry getCurrentEntry(int itemId, String shopName) {
+        if (!shopName.equals(database.getShopNameOfItem(itemId))) {
+            return null;
+        }
+        List<ShopItemEntry> entries = database.getItemEntries(List.of(itemId));
+        return entries.isEmpty() ? null : entries.get(0);
     }
 
-    private void openQuickBuyDialog(ServerPlayerEntity player, int itemId, String shopName) {
+    /**
+     * Builds a listing's slot on a page of listings. Quick actions return to
+     * {@code page} once done.
+     */
+    private GuiElementBuilder buildItemElement(ServerPlayerEntity player, SimpleGui page, String shopName, ShopItemEntry item, String creatorName) {
+        GuiElementBuilder element = new GuiElementBuilder(item.itemStack.copy());
+        element.addLoreLine(Text.empty());
+
+        if (item.isSelling) {
+            element.addLoreLine(I18n.translate("item.price.buy", Simpleshop.getInstance().formatPrice(item.price))
+                    .formatted(Formatting.GREEN));
+            element.addLoreLine(I18n.translate("item.stock.quantity", item.quantity)
+                    .formatted(Formatting.AQUA));
+        } else {
+            element.addLoreLine(I18n.translate("item.price.sell", Simpleshop.getInstance().formatPrice(item.price))
+                    .formatted(Formatting.YELLOW));
+        }
+
+        if (creatorName != null) {
+            element.addLoreLine(Text.empty());
+            element.addLoreLine(I18n.translate("gui.item.creator", creatorName).formatted(Formatting.GRAY));
+        }
+
+        element.addLoreLine(Text.empty());
+        element.addLoreLine(I18n.translate("gui.item.click_details").formatted(Formatting.GRAY));
+        element.addLoreLine(I18n.translate("gui.item.click_quick_action").formatted(Formatting.GOLD));
+
+        final int itemId = item.id;
+        element.setCallback((index, type, action) -> {
+            if (type.isLeft) {
+                openItemDetails(player, shopName, itemId);
+            } else if (type.isRight) {
+                if (item.isSelling) {
+                    openQuickBuyDialog(player, page, itemId, shopName);
+                } else {
+                    openQuickSellDialog(player, page, itemId, shopName);
+                }
+            }
+        });
+        return element;
+    }
+
+    private void openQuickBuyDialog(ServerPlayerEntity player, SimpleGui returnTo, int itemId, String shopName) {
         SignGui signGui = new SignGui(player) {
             @Override
             public void onClose() {
@@ -260,13 +373,12 @@ public class ShopGUI {
                         String creatorName = PlayerUtils.getPlayerName(UUID.fromString(database.getItemCreator(itemId)));
                         
                         // Perform transaction
-                        Simpleshop.getInstance().buyItemFromShopCore(player.getCommandSource(), itemId, amount);
+                        int bought = Simpleshop.getInstance().buyItemFromShopCore(player.getCommandSource(), itemId, amount);
                         
                         // Send notification to item owner
                         if (creatorName != null && !database.isAdminShop(shopName)) {
-                            String notificationMsg = I18n.translate("notification.item.bought", 
-                                player.getName().getString(), amount, shopName).getString();
-                            Simpleshop.getInstance().getNotificationManager().notifyPlayer(creatorName, notificationMsg);
+                            Simpleshop.getInstance().getNotificationManager().notifyTrade(creatorName,
+                                player.getName().getString(), true, itemId, shopName, bought);
                         }
                     }
                 } catch (IllegalStateException e) {
@@ -274,7 +386,7 @@ public class ShopGUI {
                 } catch (NumberFormatException e) {
                     player.sendMessage(I18n.translate("error.invalid_amount").formatted(Formatting.RED), false);
                 }
-                openItemDetails(player, shopName, itemId);
+                returnTo(player, returnTo, shopName, itemId);
             }
         };
         signGui.setLine(0, Text.literal(""));
@@ -282,8 +394,7 @@ public class ShopGUI {
 
         // Calculate max amount player can buy based on stock, inventory space, and money
         BigDecimal price = database.getItemPrice(itemId);
-        Collection<EconomyAccount> accounts = CommonEconomy.getAccounts(player, Simpleshop.getInstance().defaultCurrency);
-        EconomyAccount account = accounts.isEmpty() ? null : accounts.iterator().next();
+        EconomyAccount account = Simpleshop.getInstance().getEconomyAccounts().get(player);
         BigDecimal balance = account != null ? BigDecimal.valueOf(account.balance()).divide(BigDecimal.valueOf(1000), RoundingMode.FLOOR) : BigDecimal.ZERO;
         int maxAffordable = price.compareTo(BigDecimal.ZERO) > 0 ? balance.divide(price, RoundingMode.FLOOR).intValue() : Integer.MAX_VALUE;
         
@@ -294,7 +405,33 @@ public class ShopGUI {
         signGui.open();
     }
 
-    private void openQuickSellDialog(ServerPlayerEntity player, int itemId, String shopName) {
+    private void openAddToCartDialog(ServerPlayerEntity player, SimpleGui returnTo, int itemId, String shopName) {
+        SignGui signGui = new SignGui(player) {
+            @Override
+            public void onClose() {
+                try {
+                    String amountStr = this.getLine(0).getString().trim();
+                    int amount = Integer.parseInt(amountStr);
+                    if (amount > 0) {
+                        shopService.addToCart(player, itemId, amount);
+                        player.sendMessage(I18n.translate("cart.added", amount, shopService.getCart(player).size())
+                                .formatted(Formatting.GREEN), false);
+                    }
+                } catch (IllegalStateException e) {
+                    player.sendMessage(Text.literal(e.getMessage()).formatted(Formatting.RED), false);
+                } catch (NumberFormatException e) {
+                    player.sendMessage(I18n.translate("error.invalid_amount").formatted(Formatting.RED), false);
+                }
+                returnTo(player, returnTo, shopName, itemId);
+            }
+        };
+        signGui.setLine(0, Text.literal(""));
+        signGui.setLine(1, I18n.translate("dialog.enter_amount.cart"));
+        signGui.setLine(2, I18n.translate("dialog.enter_amount.max", database.getItemQuantity(itemId)));
+        signGui.open();
+    }
+
+    private void openQuickSellDialog(ServerPlayerEntity player, SimpleGui returnTo, int itemId, String shopName) {
         SignGui signGui = new SignGui(player) {
             @Override
             public void onClose() {
@@ -306,13 +443,12 @@ public class ShopGUI {
                         String creatorName = PlayerUtils.getPlayerName(UUID.fromString(database.getItemCreator(itemId)));
                         
                         // Perform transaction
-                        Simpleshop.getInstance().sellItemToShopCore(player.getCommandSource(), itemId, amount);
+                        int sold = Simpleshop.getInstance().sellItemToShopCore(player.getCommandSource(), itemId, amount);
                         
                         // Send notification to item owner
                         if (creatorName != null && !database.isAdminShop(shopName)) {
-                            String notificationMsg = I18n.translate("notification.item.sold", 
-                                player.getName().getString(), amount, shopName).getString();
-                            Simpleshop.getInstance().getNotificationManager().notifyPlayer(creatorName, notificationMsg);
+                            Simpleshop.getInstance().getNotificationManager().notifyTrade(creatorName,
+                                player.getName().getString(), false, itemId, shopName, sold);
                         }
                     }
                 } catch (IllegalStateException e) {
@@ -320,7 +456,7 @@ public class ShopGUI {
                 } catch (NumberFormatException e) {
                     player.sendMessage(I18n.translate("error.invalid_amount").formatted(Formatting.RED), false);
                 }
-                openItemDetails(player, shopName, itemId);
+                returnTo(player, returnTo, shopName, itemId);
             }
         };
         signGui.setLine(0, Text.literal(""));
@@ -328,12 +464,7 @@ public class ShopGUI {
 
         // Calculate max amount player can sell based on their inventory
         ItemStack itemStack = database.getItemStack(itemId);
-        int maxAmount = 0;
-        for (ItemStack stack : player.getInventory().main) {
-            if (!stack.isEmpty() && stack.isOf(itemStack.getItem())) {
-                maxAmount += stack.getCount();
-            }
-        }
+        int maxAmount = itemStack != null ? inventoryService.planSale(player, itemStack).getMatchingCount() : 0;
 
         // Check shop stock limit
         if (!database.isAdminShop(shopName)) {
@@ -387,7 +518,7 @@ public class ShopGUI {
         // Back button
         gui.setSlot(22, new GuiElementBuilder(Items.BARRIER)
                 .setName(I18n.translate("gui.shop.back").formatted(Formatting.RED))
-                .setCallback((index, type, action) -> openShopItems(player, shopName, 0))
+                .setCallback((index, type, action) -> openShopItems(player, shopName))
                 .build());
 
         gui.open();
@@ -406,12 +537,10 @@ public class ShopGUI {
                         if (normalizedItem.getCount() > 1) {
                             normalizedItem.setCount(1);
                         }
-                        String serializedItem = inventoryService.serializeHeldItem(normalizedItem);
-                        
                         int shopId = database.getShopIdByName(shopName);
-                        database.addItem(shopId, serializedItem.toString(), 0, isSelling, price, player.getUuidAsString());
+                        database.addItem(shopId, normalizedItem, 0, isSelling, price, player.getUuidAsString());
                         player.sendMessage(I18n.translate("item.create.success").formatted(Formatting.GREEN), false);
-                        openShopItems(player, shopName, 0);
+                        openShopItems(player, shopName);
                     } else {
                         player.sendMessage(I18n.translate("error.price.zero").formatted(Formatting.RED), false);
                         openCreateItemDialog(player, shopName);
@@ -450,7 +579,7 @@ public class ShopGUI {
                     }
                 } catch (NumberFormatException e) {
                     player.sendMessage(I18n.translate("error.price.invalid").formatted(Formatting.RED), false);
-                    openShopItems(player, shopName, 0);
+                    openShopItems(player, shopName);
                 }
             }
         };
@@ -489,22 +618,13 @@ public class ShopGUI {
     }
 
     private void addNavigationButtons(SimpleGui gui, ServerPlayerEntity player, int page, int maxPages) {
-        addNavigationButtons(gui, player, page, maxPages, null);
-    }
-
-    private void addNavigationButtons(SimpleGui gui, ServerPlayerEntity player, int page, int maxPages,
-            String shopName) {
         if (page > 0) {
             final int currentPage = page;
             gui.setSlot(SLOTS_PER_PAGE + 3, new GuiElementBuilder()
                     .setItem(Items.ARROW)
                     .setName(I18n.translate("gui.shop.prev_page").formatted(Formatting.YELLOW))
                     .setCallback((index, type, action) -> {
-                        if (shopName != null) {
-                            openShopItems(player, shopName, currentPage - 1);
-                        } else {
-                            openShopList(player, currentPage - 1);
-                        }
+                        openShopList(player, currentPage - 1);
                     })
                     .build());
         }
@@ -515,11 +635,7 @@ public class ShopGUI {
                     .setItem(Items.ARROW)
                     .setName(I18n.translate("gui.shop.next_page").formatted(Formatting.YELLOW))
                     .setCallback((index, type, action) -> {
-                        if (shopName != null) {
-                            openShopItems(player, shopName, currentPage + 1);
-                        } else {
-                            openShopList(player, currentPage + 1);
-                        }
+                        openShopList(player, currentPage + 1);
                     })
                     .build());
         }
@@ -527,172 +643,400 @@ public class ShopGUI {
 
 
 
+    public void openSearch(ServerPlayerEntity player, String query) {
+        List<Integer> results = Simpleshop.getInstance().getSearchIndex().search(query, MAX_SEARCH_RESULTS);
+        if (results.isEmpty()) {
+            player.sendMessage(I18n.translate("search.no_results", query).formatted(Formatting.YELLOW), false);
+            return;
+        }
+        openSearchResults(player, query, results, 0);
+    }
+
+    /**
+     * Shows one page of ranked search results. The ranking is computed once
+     * by {@link #openSearch}; turning pages only decodes the listings shown.
+     */
+    private void openSearchResults(ServerPlayerEntity player, String query, List<Integer> results, int page) {
+        long start = ShopWatchdog.begin(player.getName().getString());
+        int maxPages = (results.size() + SLOTS_PER_PAGE - 1) / SLOTS_PER_PAGE;
+        int from = page * SLOTS_PER_PAGE;
+        List<ShopItemEntry> items = database.getItemEntries(results.subList(from, Math.min(from + SLOTS_PER_PAGE, results.size())));
+
+        SimpleGui gui = new SimpleGui(ScreenHandlerType.GENERIC_9X6, player, false);
+        gui.setTitle(I18n.translate("gui.search.title", query, page + 1, maxPages));
+        ShopViewers.Registration registration = viewers.register(player, gui);
+
+        for (int slot = 0; slot < items.size(); slot++) {
+            ShopItemEntry item = items.get(slot);
+            String shopName = database.getShopNameOfItem(item.id);
+            if (shopName == null) {
+                continue;
+            }
+            gui.setSlot(slot, buildSearchResultElement(player, gui, shopName, item));
+
+            final int itemSlot = slot;
+            registration.watchItem(item.id, () -> {
+                ShopItemEntry current = getCurrentEntry(item.id, shopName);
+                if (current == null) {
+                    gui.clearSlot(itemSlot);
+                } else {
+                    gui.setSlot(itemSlot, buildSearchResultElement(player, gui, shopName, current));
+                }
+            });
+        }
+
+        gui.setSlot(SLOTS_PER_PAGE + 4, new GuiElementBuilder()
+                .setItem(Items.BARRIER)
+                .setName(I18n.translate("gui.shop.back").formatted(Formatting.RED))
+                .setCallback((index, type, action) -> openShopList(player, 0))
+                .build());
+
+        if (page > 0) {
+            gui.setSlot(SLOTS_PER_PAGE + 3, new GuiElementBuilder()
+                    .setItem(Items.ARROW)
+                    .setName(I18n.translate("gui.shop.prev_page").formatted(Formatting.YELLOW))
+                    .setCallback((index, type, action) -> openSearchResults(player, query, results, page - 1))
+                    .build());
+        }
+
+        if (page < maxPages - 1) {
+            gui.setSlot(SLOTS_PER_PAGE + 5, new GuiElementBuilder()
+                    .setItem(Items.ARROW)
+                    .setName(I18n.translate("gui.shop.next_page").formatted(Formatting.YELLOW))
+                    .setCallback((index, type, action) -> openSearchResults(player, query, results, page + 1))
+                    .build());
+        }
+
+        addCartButton(gui, player, () -> openSearchResults(player, query, results, page));
+        gui.open();
+        SEARCH_TIMER.recordSince(start);
+    }
+
+    private GuiElement buildSearchResultElement(ServerPlayerEntity player, SimpleGui page, String shopName, ShopItemEntry item) {
+        GuiElementBuilder element = buildItemElement(player, page, shopName, item, null);
+        element.addLoreLine(I18n.translate("gui.search.shop", shopName).formatted(Formatting.DARK_AQUA));
+        return element.build();
+    }
+
+    private void addCartButton(SimpleGui gui, ServerPlayerEntity player, Runnable onBack) {
+        ShoppingCart cart = shopService.getCart(player);
+        if (cart.isEmpty()) {
+            return;
+        }
+        gui.setSlot(SLOTS_PER_PAGE + 8, new GuiElementBuilder(Items.MINECART)
+                .setName(I18n.translate("gui.cart.open").formatted(Formatting.GREEN))
+                .addLoreLine(I18n.translate("gui.cart.open.desc", cart.size()).formatted(Formatting.GRAY))
+                .setCallback((index, type, action) -> openCart(player, onBack))
+                .build());
+    }
+
+    /**
+     * Shows the player's cart with a running total. Clicking a line removes
+     * it; checkout buys every line in one purchase.
+     */
+    private void openCart(ServerPlayerEntity player, Runnable onBack) {
+        long start = ShopWatchdog.begin(player.getName().getString());
+        SimpleGui gui = new SimpleGui(ScreenHandlerType.GENERIC_9X6, player, false);
+        gui.setTitle(I18n.translate("gui.cart.title"));
+
+        ShoppingCart cart = shopService.getCart(player);
+        BigDecimal total = BigDecimal.ZERO;
+        int slot = 0;
+        for (Map.Entry<Integer, Integer> line : cart.getLines().entrySet()) {
+            int itemId = line.getKey();
+            int amount = line.getValue();
+            ShopCatalog.ItemRecord item = database.getCatalog().getItem(itemId);
+            ItemStack itemStack = item != null ? database.getItemStack(itemId) : null;
+
+            GuiElementBuilder element;
+            if (itemStack == null || !item.isSelling) {
+                element = new GuiElementBuilder(Items.BARRIER)
+                        .setName(I18n.translate("cart.unavailable", itemId).formatted(Formatting.RED));
+            } else {
+                BigDecimal lineTotal = item.price.multiply(BigDecimal.valueOf(amount));
+                total = total.add(lineTotal);
+                element = new GuiElementBuilder(itemStack.copy())
+                        .addLoreLine(Text.empty())
+                        .addLoreLine(I18n.translate("gui.cart.line.amount", amount).formatted(Formatting.AQUA))
+                        .addLoreLine(I18n.translate("gui.cart.line.total", Simpleshop.getInstance().formatPrice(lineTotal))
+                                .formatted(Formatting.GREEN));
+            }
+            element.addLoreLine(Text.empty())
+                    .addLoreLine(I18n.translate("gui.cart.line.remove").formatted(Formatting.GRAY))
+                    .setCallback((index, type, action) -> {
+                        cart.remove(itemId);
+                        openCart(player, onBack);
+                    });
+            gui.setSlot(slot++, element.build());
+        }
+
+        if (!cart.isEmpty()) {
+            gui.setSlot(SLOTS_PER_PAGE, new GuiElementBuilder(Items.LAVA_BUCKET)
+                    .setName(I18n.translate("gui.cart.clear").formatted(Formatting.RED))
+                    .setCallback((index, type, action) -> {
+                        cart.clear();
+                        onBack.run();
+                    })
+                    .build());
+
+            String totalText = Simpleshop.getInstance().formatPrice(total);
+            gui.setSlot(SLOTS_PER_PAGE + 8, new GuiElementBuilder(Items.EMERALD_BLOCK)
+                    .setName(I18n.translate("gui.cart.checkout").formatted(Formatting.GREEN))
+                    .addLoreLine(I18n.translate("gui.cart.checkout.desc", totalText).formatted(Formatting.GRAY))
+                    .setCallback((index, type, action) -> {
+                        openConfirmationDialog(player,
+                                I18n.translate("dialog.checkout.title").getString(),
+                                I18n.translate("dialog.checkout.message", cart.size(), totalText).getString(),
+                                () -> {
+                                    try {
+                                        Simpleshop.getInstance().checkoutCartCore(player.getCommandSource());
+                                        onBack.run();
+                                    } catch (IllegalStateException e) {
+                                        player.sendMessage(Text.literal(e.getMessage()).formatted(Formatting.RED), false);
+                                        openCart(player, onBack);
+                                    }
+                                },
+                                () -> openCart(player, onBack));
+                    })
+                    .build());
+        }
+
+        gui.setSlot(SLOTS_PER_PAGE + 4, new GuiElementBuilder(Items.BARRIER)
+                .setName(I18n.translate("gui.shop.back").formatted(Formatting.RED))
+                .setCallback((index, type, action) -> onBack.run())
+                .build());
+
+        gui.open();
+
+        CART_TIMER.recordSince(start);
+    }
+
     public void openItemDetails(ServerPlayerEntity player, String shopName, int itemId) {
+        long start = ShopWatchdog.begin(player.getName().getString());
         // Change to 6-row GUI for more space
         SimpleGui gui = new SimpleGui(ScreenHandlerType.GENERIC_9X6, player, false);
 
-        try {
-            // Get item details
-            String sql = "SELECT i.*, s.isAdminShop, i.creator FROM items i " +
-                    "JOIN shops s ON i.shopId = s.id " +
-                    "WHERE s.name = ? AND i.id = ?";
-
-            try (PreparedStatement pstmt = database.getConnection().prepareStatement(sql)) {
-                pstmt.setString(1, shopName);
-                pstmt.setInt(2, itemId);
-                ResultSet rs = pstmt.executeQuery();
-
-                if (rs.next()) {
-                    ItemStack itemStack = database.getItemStack(itemId);
-                    boolean isSelling = rs.getBoolean("isSelling");
-                    int quantity = rs.getInt("quantity");
-                    BigDecimal price = rs.getBigDecimal("price");
-                    String creatorUUID = rs.getString("creator");
-                    String creator;
-                    if (creatorUUID != null) {
-                        creator = PlayerUtils.getPlayerName(UUID.fromString(creatorUUID));
-                    } else {
-                        creator = "Unknown";
-                    }
-                    boolean isCreator = player.getName().getString().equals(creator);
-                    boolean isAdmin = Permissions.check(player.getCommandSource(), "Simpleshop.Admin", 2);
-
-                    // Display item in the center top
-                    GuiElementBuilder itemElement = new GuiElementBuilder(itemStack.copy())
-                            .addLoreLine(Text.empty())
-                            .addLoreLine(I18n.translate("gui.item.quantity", quantity).formatted(Formatting.AQUA))
-                            .addLoreLine(I18n.translate(isSelling ? "item.price.buy" : "item.price.sell", 
-                                    Simpleshop.getInstance().formatPrice(price))
-                                    .formatted(isSelling ? Formatting.GREEN : Formatting.YELLOW))
-                            .addLoreLine(Text.empty())
-                            .addLoreLine(I18n.translate("gui.item.creator", creator).formatted(Formatting.GRAY));
-
-                    gui.setSlot(4, itemElement.build());
-
-                    // Client actions (Row 2: slots 18-26)
-                    if (isSelling) {
-                        // Buy button
-                        gui.setSlot(22, new GuiElementBuilder(Items.EMERALD)
-                                .setName(I18n.translate("gui.item.buy").formatted(Formatting.GREEN))
-                                .addLoreLine(I18n.translate("gui.item.buy.desc").formatted(Formatting.GRAY))
-                                .setCallback((index, type, action) -> {
-                                    openQuickBuyDialog(player, itemId, shopName);
-                                })
-                                .build());
-                    } else {
-                        // Sell button
-                        gui.setSlot(22, new GuiElementBuilder(Items.GOLD_INGOT)
-                                .setName(I18n.translate("gui.item.sell").formatted(Formatting.YELLOW))
-                                .addLoreLine(I18n.translate("gui.item.sell.desc").formatted(Formatting.GRAY))
-                                .setCallback((index, type, action) -> {
-                                    openQuickSellDialog(player, itemId, shopName);
-                                })
-                                .build());
+        // Get item details
+        ShopCatalog.ItemRecord item = database.getCatalog().getItem(itemId);
+        ShopCatalog.ShopRecord shop = database.getCatalog().getShop(shopName);
+        if (item == null || shop == null || item.shopId != shop.id) {
+            return;
+        }
+
+        boolean isSelling = item.isSelling;
+        String creatorUUID = item.creator;
+        String creator;
+        if (creatorUUID != null) {
+            creator = PlayerUtils.getPlayerName(UUID.fromString(creatorUUID));
+        } else {
+            creator = "Unknown";
+        }
+        boolean isCreator = player.getName().getString().equals(creator);
+        boolean isAdmin = Permissions.check(player.getCommandSource(), "Simpleshop.Admin", 2);
+
+        renderItemState(gui, player, shopName, itemId, creator, isCreator || isAdmin, isCreator);
+
+        // Client actions (Row 2: slots 18-26)
+        if (isSelling) {
+            // Buy button
+            gui.setSlot(22, new GuiElementBuilder(Items.EMERALD)
+                    .setName(I18n.translate("gui.item.buy").formatted(Formatting.GREEN))
+                    .addLoreLine(I18n.translate("gui.item.buy.desc").formatted(Formatting.GRAY))
+                    .setCallback((index, type, action) -> {
+                        openQuickBuyDialog(player, gui, itemId, shopName);
+                    })
+                    .build());
+
+            if (shop.isAdminShop || !isCreator) {
+                gui.setSlot(24, new GuiElementBuilder(Items.MINECART)
+                        .setName(I18n.translate("gui.item.add_to_cart").formatted(Formatting.GREEN))
+                        .addLoreLine(I18n.translate("gui.item.add_to_cart.desc").formatted(Formatting.GRAY))
+                        .setCallback((index, type, action) -> {
+                            openAddToCartDialog(player, gui, itemId, shopName);
+                        })
+                        .build());
+            }
+        } else {
+            // Sell button
+            gui.setSlot(22, new GuiElementBuilder(Items.GOLD_INGOT)
+                    .setName(I18n.translate("gui.item.sell").formatted(Formatting.YELLOW))
+                    .addLoreLine(I18n.translate("gui.item.sell.desc").formatted(Formatting.GRAY))
+                    .setCallback((index, type, action) -> {
+                        openQuickSellDialog(player, gui, itemId, shopName);
+                    })
+                    .build());
+        }
+
+        // Creator/Admin controls (Row 4: slots 36-44)
+        if (isCreator || isAdmin) {
+            // Edit price button
+            gui.setSlot(38, new GuiElementBuilder(Items.GOLD_NUGGET)
+                    .setName(I18n.translate("gui.item.edit_price").formatted(Formatting.GOLD))
+                    .addLoreLine(I18n.translate("gui.item.edit_price.desc").formatted(Formatting.GRAY))
+                    .setCallback((index, type, action) -> {
+                        openPriceDialog(player, itemId, shopName);
+                    })
+                    .build());
+
+            // Move item button (only for non-admin shops)
+            if (!shop.isAdminShop) {
+                gui.setSlot(40, new GuiElementBuilder(Items.ENDER_PEARL)
+                        .setName(I18n.translate("gui.item.move").formatted(Formatting.LIGHT_PURPLE))
+                        .addLoreLine(I18n.translate("gui.item.move.desc").formatted(Formatting.GRAY))
+                        .setCallback((index, type, action) -> {
+                            openMoveItemDialog(player, itemId, shopName);
+                        })
+                        .build());
+            }
+
+            // Toggle buy/sell mode
+            gui.setSlot(42, new GuiElementBuilder(isSelling ? Items.HOPPER : Items.CHEST)
+                    .setName(I18n.translate("gui.item.toggle_mode").formatted(Formatting.AQUA))
+                    .addLoreLine(I18n.translate("gui.item.toggle_mode.current", 
+                            I18n.translate(isSelling ? "gui.item.toggle_mode.selling" : "gui.item.toggle_mode.buying").getString())
+                            .formatted(Formatting.GRAY))
+                    .setCallback((index, type, action) -> {
+                        openConfirmationDialog(player,
+                                I18n.translate("dialog.toggle_mode.title").getString(),
+                                I18n.translate("dialog.toggle_mode.message", 
+                                        I18n.translate(isSelling ? "gui.item.toggle_mode.buying" : "gui.item.toggle_mode.selling").getString()).getString(),
+                                () -> {
+                                    database.toggleItemMode(itemId);
+                                    openItemDetails(player, shopName, itemId);
+                                },
+                                () -> openItemDetails(player, shopName, itemId));
+                    })
+                    .build());
+
+            // Stock management buttons for creator (Row 3: slots 27-35)
+            if (isCreator) {
+                // Add stock button
+                gui.setSlot(30, new GuiElementBuilder(Items.HOPPER)
+                        .setName(I18n.translate("gui.item.add_stock").formatted(Formatting.GREEN))
+                        .addLoreLine(I18n.translate("gui.item.add_stock.desc").formatted(Formatting.GRAY))
+                        .setCallback((index, type, action) -> {
+                            openQuickStockDialog(player, gui, itemId, shopName);
+                        })
+                        .build());
+            }
+        }
+
+        // Back button (Bottom row center)
+        gui.setSlot(49, new GuiElementBuilder(Items.BARRIER)
+                .setName(I18n.translate("gui.shop.back").formatted(Formatting.RED))
+                .setCallback((index, type, action) -> openShopItems(player, shopName))
+                .build());
+
+        gui.setTitle(I18n.translate("gui.item.details", "Item Details - " + shopName));
+        viewers.register(player, gui).watchItem(itemId,
+                () -> renderItemState(gui, player, shopName, itemId, creator, isCreator || isAdmin, isCreator));
+        gui.open();
+        ITEM_DETAILS_TIMER.recordSince(start);
+
+        // Recent trade totals come from the rollups off-thread and are added once known
+        CompletableFuture.supplyAsync(() -> database.getTradeSummary(itemId, HISTORY_DAYS))
+                .thenAcceptAsync(summary -> {
+                    if (gui.isOpen() && summary.trades > 0) {
+                        gui.setSlot(6, buildHistoryElement(summary).build());
                     }
+                }, Simpleshop.getInstance().serverInstance);
+    }
 
-                    // Creator/Admin controls (Row 4: slots 36-44)
-                    if (isCreator || isAdmin) {
-                        // Edit price button
-                        gui.setSlot(38, new GuiElementBuilder(Items.GOLD_NUGGET)
-                                .setName(I18n.translate("gui.item.edit_price").formatted(Formatting.GOLD))
-                                .addLoreLine(I18n.translate("gui.item.edit_price.desc").formatted(Formatting.GRAY))
-                                .setCallback((index, type, action) -> {
-                                    openPriceDialog(player, itemId, shopName);
-                                })
-                                .build());
-
-                        // Move item button (only for non-admin shops)
-                        if (!rs.getBoolean("isAdminShop")) {
-                            gui.setSlot(40, new GuiElementBuilder(Items.ENDER_PEARL)
-                                    .setName(I18n.translate("gui.item.move").formatted(Formatting.LIGHT_PURPLE))
-                                    .addLoreLine(I18n.translate("gui.item.move.desc").formatted(Formatting.GRAY))
-                                    .setCallback((index, type, action) -> {
-                                        openMoveItemDialog(player, itemId, shopName);
-                                    })
-                                    .build());
-                        }
+    /**
+     * Sets the parts of the item details page that follow the listing's stock
+     * and price: the item itself, the withdraw button and the remove button.
+     * Called again whenever the listing changes while the page is open.
+     */
+    private void renderItemState(SimpleGui gui, ServerPlayerEntity player, String shopName, int itemId, String creator,
+            boolean canManage, boolean isCreator) {
+        ShopCatalog.ItemRecord item = database.getCatalog().getItem(itemId);
+        if (item == null) {
+            return;
+        }
+        ItemStack itemStack = database.getItemStack(itemId);
+        boolean isSelling = item.isSelling;
+        int quantity = item.quantity;
+
+        // Display item in the center top
+        GuiElementBuilder itemElement = new GuiElementBuilder(itemStack.copy())
+                .addLoreLine(Text.empty())
+                .addLoreLine(I18n.translate("gui.item.quantity", quantity).formatted(Formatting.AQUA))
+                .addLoreLine(I18n.translate(isSelling ? "item.price.buy" : "item.price.sell", 
+                        Simpleshop.getInstance().formatPrice(item.price))
+                        .formatted(isSelling ? Formatting.GREEN : Formatting.YELLOW))
+                .addLoreLine(Text.empty())
+                .addLoreLine(I18n.translate("gui.item.creator", creator).formatted(Formatting.GRAY));
+
+        gui.setSlot(4, itemElement.build());
+
+        if (!canManage) {
+            return;
+        }
 
-                        // Toggle buy/sell mode
-                        gui.setSlot(42, new GuiElementBuilder(isSelling ? Items.HOPPER : Items.CHEST)
-                                .setName(I18n.translate("gui.item.toggle_mode").formatted(Formatting.AQUA))
-                                .addLoreLine(I18n.translate("gui.item.toggle_mode.current", 
-                                        I18n.translate(isSelling ? "gui.item.toggle_mode.selling" : "gui.item.toggle_mode.buying").getString())
-                                        .formatted(Formatting.GRAY))
-                                .setCallback((index, type, action) -> {
-                                    openConfirmationDialog(player,
-                                            I18n.translate("dialog.toggle_mode.title").getString(),
-                                            I18n.translate("dialog.toggle_mode.message", 
-                                                    I18n.translate(isSelling ? "gui.item.toggle_mode.buying" : "gui.item.toggle_mode.selling").getString()).getString(),
-                                            () -> {
-                                                database.toggleItemMode(itemId);
-                                                openItemDetails(player, shopName, itemId);
-                                            },
-                                            () -> openItemDetails(player, shopName, itemId));
-                                })
-                                .build());
-
-                        // Remove item button (only if quantity is 0)
-                        if (quantity == 0) {
-                            gui.setSlot(44, new GuiElementBuilder(Items.BARRIER)
-                                    .setName(I18n.translate("gui.item.remove").formatted(Formatting.RED))
-                                    .addLoreLine(I18n.translate("gui.item.remove.desc").formatted(Formatting.GRAY))
-                                    .setCallback((index, type, action) -> {
-                                        openConfirmationDialog(player,
-                                                I18n.translate("dialog.remove_item.title").getString(),
-                                                I18n.translate("dialog.remove_item.message").getString(),
-                                                () -> {
-                                                    database.removeItem(itemId);
-                                                    openShopItems(player, shopName, 0);
-                                                },
-                                                () -> openItemDetails(player, shopName, itemId));
-                                    })
-                                    .build());
-                        }
+        // Remove item button (only if quantity is 0)
+        if (quantity == 0) {
+            gui.setSlot(44, new GuiElementBuilder(Items.BARRIER)
+                    .setName(I18n.translate("gui.item.remove").formatted(Formatting.RED))
+                    .addLoreLine(I18n.translate("gui.item.remove.desc").formatted(Formatting.GRAY))
+                    .setCallback((index, type, action) -> {
+                        openConfirmationDialog(player,
+                                I18n.translate("dialog.remove_item.title").getString(),
+                                I18n.translate("dialog.remove_item.message").getString(),
+                                () -> {
+                                    database.removeItem(itemId);
+                                    openShopItems(player, shopName);
+                                },
+                                () -> openItemDetails(player, shopName, itemId));
+                    })
+                    .build());
+        } else {
+            gui.clearSlot(44);
+        }
 
-                        // Stock management buttons for creator (Row 3: slots 27-35)
-                        if (isCreator) {
-                            // Add stock button
-                            gui.setSlot(30, new GuiElementBuilder(Items.HOPPER)
-                                    .setName(I18n.translate("gui.item.add_stock").formatted(Formatting.GREEN))
-                                    .addLoreLine(I18n.translate("gui.item.add_stock.desc").formatted(Formatting.GRAY))
-                                    .setCallback((index, type, action) -> {
-                                        openQuickStockDialog(player, itemId, shopName);
-                                    })
-                                    .build());
-
-                            // Withdraw stock button
-                            gui.setSlot(32, new GuiElementBuilder(Items.CHEST_MINECART)
-                                    .setName(I18n.translate("gui.item.withdraw").formatted(Formatting.GOLD))
-                                    .addLoreLine(I18n.translate("gui.item.withdraw.desc").formatted(Formatting.GRAY))
-                                    .addLoreLine(I18n.translate("item.stock.quantity", quantity).formatted(Formatting.AQUA))
-                                    .setCallback((index, type, action) -> {
-                                        if (quantity > 0) {
-                                            openQuickTakeDialog(player, itemId, shopName);
-                                        } else {
-                                            player.sendMessage(I18n.translate("gui.item.no_stock").formatted(Formatting.RED), false);
-                                        }
-                                    })
-                                    .build());
+        if (isCreator) {
+            // Withdraw stock button
+            gui.setSlot(32, new GuiElementBuilder(Items.CHEST_MINECART)
+                    .setName(I18n.translate("gui.item.withdraw").formatted(Formatting.GOLD))
+                    .addLoreLine(I18n.translate("gui.item.withdraw.desc").formatted(Formatting.GRAY))
+                    .addLoreLine(I18n.translate("item.stock.quantity", quantity).formatted(Formatting.AQUA))
+                    .setCallback((index, type, action) -> {
+                        if (quantity > 0) {
+                            openQuickTakeDialog(player, gui, itemId, shopName);
+                        } else {
+                            player.sendMessage(I18n.translate("gui.item.no_stock").formatted(Formatting.RED), false);
                         }
-                    }
+                    })
+                    .build());
+        }
+    }
 
-                    // Back button (Bottom row center)
-                    gui.setSlot(49, new GuiElementBuilder(Items.BARRIER)
-                            .setName(I18n.translate("gui.shop.back").formatted(Formatting.RED))
-                            .setCallback((index, type, action) -> openShopItems(player, shopName, 0))
-                            .build());
+    /**
+     * Shows the page a quick action dialog was opened from again. While the
+     * page is still registered with {@link ShopViewers}, the trade just made
+     * is patched into it at the end of the tick like for any other viewer;
+     * once it has been dropped it is out of date and the details are built
+     * again instead.
+     */
+    private void returnTo(ServerPlayerEntity player, SimpleGui page, String shopName, int itemId) {
+        if (page != null && viewers.isRegistered(player, page) && database.itemExists(itemId) && page.open()) {
+            return;
+        }
+        openItemDetails(player, shopName, itemId);
+    }
 
-                    gui.setTitle(I18n.translate("gui.item.details", "Item Details - " + shopName));
-                    gui.open();
-                }
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            player.sendMessage(I18n.translate("error.update_failed").formatted(Formatting.RED), false);
+    private GuiElementBuilder buildHistoryElement(ShopDatabase.TradeSummary summary) {
+        Simpleshop mod = Simpleshop.getInstance();
+        GuiElementBuilder element = new GuiElementBuilder(Items.WRITABLE_BOOK)
+                .setName(I18n.translate("gui.item.history", HISTORY_DAYS).formatted(Formatting.GOLD))
+                .addLoreLine(I18n.translate("gui.item.history.trades", summary.trades, summary.volume).formatted(Formatting.GRAY));
+        if (summary.averagePrice != null && summary.minPrice != null && summary.maxPrice != null) {
+            element.addLoreLine(I18n.translate("gui.item.history.prices", mod.formatPrice(summary.minPrice),
+                    mod.formatPrice(summary.maxPrice), mod.formatPrice(summary.averagePrice)).formatted(Formatting.GRAY));
         }
+        return element;
     }
 
-    private void openQuickStockDialog(ServerPlayerEntity player, int itemId, String shopName) {
+    private void openQuickStockDialog(ServerPlayerEntity player, SimpleGui returnTo, int itemId, String shopName) {
         SignGui signGui = new SignGui(player) {
             @Override
             public void onClose() {
@@ -709,7 +1053,7 @@ public class ShopGUI {
                 } catch (NumberFormatException e) {
                     player.sendMessage(I18n.translate("error.invalid_amount").formatted(Formatting.RED), false);
                 }
-                openItemDetails(player, shopName, itemId);
+                returnTo(player, returnTo, shopName, itemId);
             }
         };
         signGui.setLine(0, Text.literal(""));
@@ -718,7 +1062,7 @@ public class ShopGUI {
         signGui.open();
     }
 
-    private void openQuickTakeDialog(ServerPlayerEntity player, int itemId, String shopName) {
+    private void openQuickTakeDialog(ServerPlayerEntity player, SimpleGui returnTo, int itemId, String shopName) {
         SignGui signGui = new SignGui(player) {
             @Override
             public void onClose() {
@@ -726,26 +1070,23 @@ public class ShopGUI {
                     String amountStr = this.getLine(0).getString().trim();
                     int amount = Integer.parseInt(amountStr);
                     if (amount > 0) {
-                        int currentStock = database.getItemQuantity(itemId);
-                        if (amount <= currentStock) {
-                            ItemStack itemStack = database.getItemStack(itemId);
-                            if (itemStack != null) {
-                                itemStack.setCount(amount);
-                                if (player.getInventory().insertStack(itemStack)) {
-                                    database.removeStockFromItem(itemId, amount);
-                                    player.sendMessage(I18n.translate("item.take.success", amount).formatted(Formatting.GREEN), false);
-                                } else {
-                                    player.sendMessage(I18n.translate("error.insufficient_space").formatted(Formatting.RED), false);
-                                }
-                            }
+                        ItemStack itemStack = database.getItemStack(itemId);
+                        InventoryPlan plan = itemStack != null ? inventoryService.plan(player, itemStack) : null;
+                        if (plan == null || plan.getFreeCapacity() < amount) {
+                            player.sendMessage(I18n.translate("error.insufficient_space").formatted(Formatting.RED), false);
+                        } else if (database.executeTrade(itemId, ShopDatabase.TradeType.TAKE, amount, player.getUuidAsString()) == ShopDatabase.TRADE_REJECTED) {
+                            player.sendMessage(I18n.translate("error.insufficient_stock", database.getItemQuantity(itemId)).formatted(Formatting.RED), false);
                         } else {
-                            player.sendMessage(I18n.translate("error.insufficient_stock", currentStock).formatted(Formatting.RED), false);
+                            if (!plan.insert(amount)) {
+                                player.getInventory().offerOrDrop(itemStack.copyWithCount(amount));
+                            }
+                            player.sendMessage(I18n.translate("item.take.success", amount).formatted(Formatting.GREEN), false);
                         }
                     }
                 } catch (NumberFormatException e) {
                     player.sendMessage(I18n.translate("error.invalid_amount").formatted(Formatting.RED), false);
                 }
-                openItemDetails(player, shopName, itemId);
+                returnTo(player, returnTo, shopName, itemId);
             }
         };
         signGui.setLine(0, Text.literal(""));
@@ -755,6 +1096,7 @@ public class ShopGUI {
     }
 
     private void openShopSettings(ServerPlayerEntity player, String shopName) {
+        long start = ShopWatchdog.begin(player.getName().getString());
         SimpleGui gui = new SimpleGui(ScreenHandlerType.GENERIC_9X3, player, false);
         gui.setTitle(I18n.translate("gui.shop.settings", shopName));
 
@@ -822,6 +1164,8 @@ public class ShopGUI {
                 .build());
 
         gui.open();
+
+        SHOP_SETTINGS_TIMER.recordSince(start);
     }
 
     private void openShopNameEditor(ServerPlayerEntity player, String oldShopName) {
@@ -886,6 +1230,7 @@ public class ShopGUI {
 
 
     private void openMoveItemDialog(ServerPlayerEntity player, int itemId, String currentShopName) {
+        long start = ShopWatchdog.begin(player.getName().getString());
         // Get list of user shops excluding current shop
         List<ShopEntry> userShops = shopService.getUserShops(currentShopName);
         if (userShops.isEmpty()) {
@@ -918,7 +1263,7 @@ public class ShopGUI {
 
             element.setCallback((index, type, action) -> {
                 shopService.moveItemToShop(player, itemId, currentShopName, shop.name);
-openShopItems(player, shop.name, 0);
+openShopItems(player, shop.name);
             });
 
             gui.setSlot(i, element.build());
@@ -932,6 +1277,8 @@ openShopItems(player, shop.name, 0);
                 .build());
 
         gui.open();
+
+        MOVE_ITEM_TIMER.recordSince(start);
     }
 
 
@@ -0,0 +1,134 @@
+package com.iruanp.simpleshop;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonParser;
+import com.iruanp.simpleshop.service.ShopEntry;
+import com.mojang.datafixers.util.Pair;
+import com.mojang.serialization.JsonOps;
+
+import eu.pb4.sgui.api.elements.GuiElementBuilder;
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.text.Text;
+import net.minecraft.util.Formatting;
+
+/**
+ * Rendered shop list icons, keyed by language and shop name. An entry is
+ * reused as long as the shop's catalog version is unchanged, so opening the
+ * list only copies stacks instead of parsing icons and translating lore.
+ * Listing, stock and trade counts change the version too.
+ */
+public class ShopListCache {
+    private static final DateTimeFormatter LAST_TRADE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    private static class Entry {
+        final long version;
+        final ItemStack stack;
+        final ItemStack adminStack;
+
+        Entry(long version, ItemStack stack, ItemStack adminStack) {
+            this.version = version;
+            this.stack = stack;
+            this.adminStack = adminStack;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Returns a copy of the rendered icon for the shop. Admins get the variant
+     * with the right-click hint.
+     */
+    public ItemStack get(ShopEntry shop, boolean admin) {
+        String key = I18n.getLanguage() + ":" + shop.name;
+        Entry entry = entries.get(key);
+        if (entry == null || entry.version != shop.version) {
+            misses.increment();
+            entry = render(shop);
+            entries.put(key, entry);
+        } else {
+            hits.increment();
+        }
+        return (admin ? entry.adminStack : entry.stack).copy();
+    }
+
+    /**
+     * Drops entries for shops that no longer exist or were renamed.
+     */
+    public void prune(List<ShopEntry> shops) {
+        if (entries.size() <= shops.size()) {
+            return;
+        }
+        String prefix = I18n.getLanguage() + ":";
+        Set<String> keys = new HashSet<>();
+        for (ShopEntry shop : shops) {
+            keys.add(prefix + shop.name);
+        }
+        entries.keySet().retainAll(keys);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    private static Entry render(ShopEntry shop) {
+        ItemStack icon = ItemStack.CODEC.decode(JsonOps.INSTANCE, JsonParser.parseString(shop.item))
+                .resultOrPartial(Simpleshop.LOGGER::error)
+                .map(Pair::getFirst)
+                .orElse(null);
+
+        GuiElementBuilder element = new GuiElementBuilder()
+                .setItem(icon != null ? icon.getItem() : Items.CHEST)
+                .setName(Text.literal(shop.name))
+                .addLoreLine(Text.literal(I18n.translate("gui.shop.type", shop.isAdminShop ?
+                        I18n.translate("gui.shop.type.admin").getString() :
+                        I18n.translate("gui.shop.type.player").getString()).getString())
+                        .formatted(Formatting.GRAY));
+
+        element.addLoreLine(I18n.translate("gui.shop.stats.listings", shop.listingCount).formatted(Formatting.AQUA));
+        if (!shop.isAdminShop) {
+            element.addLoreLine(I18n.translate("gui.shop.stats.stock", shop.totalStock).formatted(Formatting.AQUA));
+        }
+        if (shop.tradeCount > 0) {
+            String lastTrade = LAST_TRADE_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(shop.lastTradeAt), ZoneId.systemDefault()));
+            element.addLoreLine(I18n.translate("gui.shop.stats.trades", shop.tradeCount, lastTrade).formatted(Formatting.AQUA));
+        } else {
+            element.addLoreLine(I18n.translate("gui.shop.stats.no_trades").formatted(Formatting.DARK_GRAY));
+        }
+
+        if (!shop.description.isEmpty()) {
+            element.addLoreLine(Text.empty());
+            element.addLoreLine(I18n.translate("gui.shop.description").formatted(Formatting.YELLOW));
+            element.addLoreLine(Text.literal(shop.description).formatted(Formatting.GRAY));
+        }
+
+        element.addLoreLine(Text.empty());
+        element.addLoreLine(I18n.translate("gui.shop.click_view").formatted(Formatting.GREEN));
+        element.addLoreLine(I18n.translate("gui.shop.shift_edit").formatted(Formatting.YELLOW));
+        ItemStack stack = element.asStack();
+
+        element.addLoreLine(Text.empty());
+        element.addLoreLine(I18n.translate("gui.shop.right_edit").formatted(Formatting.GOLD));
+        ItemStack adminStack = element.asStack();
+
+        return new Entry(shop.version, stack, adminStack);
+    }
+}
@@ -0,0 +1,184 @@
+package com.iruanp.simpleshop;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import eu.pb4.sgui.api.gui.SimpleGui;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+/**
+ * Which listings and shops each player's shop GUI is showing, so a change to
+ * a listing patches the affected slots in place instead of every viewer
+ * reopening the page. Listings are marked changed from any thread; the
+ * patches run once per tick on the server thread, however many times a
+ * listing changed in between.
+ *
+ * Each player has at most one registered GUI, the one most recently opened
+ * through {@link ShopGUI}. A GUI found closed when one of its listings
+ * changes is dropped instead of patched; that includes a page covered by a
+ * sign dialog, which is then built again rather than reopened.
+ */
+public class ShopViewers {
+    private static final Metrics.Timer FLUSH_TIMER = Metrics.timer("gui.patchViewers");
+
+    public class Registration {
+        private final UUID player;
+        private final SimpleGui gui;
+        private final Map<Integer, Runnable> items = new HashMap<>();
+        private final Map<Integer, Runnable> shops = new HashMap<>();
+
+        private Registration(UUID player, SimpleGui gui) {
+            this.player = player;
+            this.gui = gui;
+        }
+
+        /**
+         * Re-renders part of the GUI when the listing changes.
+         */
+        public void watchItem(int itemId, Runnable patch) {
+            items.put(itemId, patch);
+            itemIndex.computeIfAbsent(itemId, id -> new HashSet<>()).add(player);
+        }
+
+        /**
+         * Re-renders part of the GUI when any listing of the shop changes.
+         */
+        public void watchShop(int shopId, Runnable patch) {
+            shops.put(shopId, patch);
+            shopIndex.computeIfAbsent(shopId, id -> new HashSet<>()).add(player);
+        }
+    }
+
+    // Server thread only
+    private final Map<UUID, Registration> registrations = new HashMap<>();
+    private final Map<Integer, Set<UUID>> itemIndex = new HashMap<>();
+    private final Map<Integer, Set<UUID>> shopIndex = new HashMap<>();
+    // Listing id to the shop it was in when marked, which may be gone by the flush
+    private final Map<Integer, Integer> changedItems = new ConcurrentHashMap<>();
+    private final Set<Integer> changedShops = ConcurrentHashMap.newKeySet();
+    // Read by the metrics reporter
+    private volatile int viewerCount;
+
+    /**
+     * Registers the GUI a player is about to be shown, replacing whatever was
+     * registered for them before.
+     */
+    public Registration register(ServerPlayerEntity player, SimpleGui gui) {
+        drop(player.getUuid());
+        Registration registration = new Registration(player.getUuid(), gui);
+        registrations.put(player.getUuid(), registration);
+        viewerCount = registrations.size();
+        return registration;
+    }
+
+    public void drop(UUID player) {
+        Registration registration = registrations.remove(player);
+        if (registration == null) {
+            return;
+        }
+        viewerCount = registrations.size();
+        for (Integer itemId : registration.items.keySet()) {
+            unindex(itemIndex, itemId, player);
+        }
+        for (Integer shopId : registration.shops.keySet()) {
+            unindex(shopIndex, shopId, player);
+        }
+    }
+
+    /**
+     * Whether the GUI is still the one registered for the player, and so has
+     * been kept up to date.
+     */
+    public boolean isRegistered(ServerPlayerEntity player, SimpleGui gui) {
+        Registration registration = registrations.get(player.getUuid());
+        return registration != null && registration.gui == gui;
+    }
+
+    public void markChanged(int itemId, int shopId) {
+        changedItems.put(itemId, shopId);
+    }
+
+    /**
+     * Marks a change to the shop itself, such as a rename, for GUIs listing it.
+     */
+    public void markShopChanged(int shopId) {
+        changedShops.add(shopId);
+    }
+
+    public int getViewerCount() {
+        return viewerCount;
+    }
+
+    /**
+     * Applies the patches for every listing marked since the last flush.
+     * Called at the end of each server tick.
+     */
+    public void flush() {
+        if (changedItems.isEmpty() && changedShops.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        Map<Integer, Integer> items = new HashMap<>(changedItems);
+        Set<Integer> shops = new HashSet<>(changedShops);
+        changedShops.removeAll(shops);
+
+        for (Map.Entry<Integer, Integer> entry : items.entrySet()) {
+            changedItems.remove(entry.getKey(), entry.getValue());
+            for (Registration registration : viewersOf(itemIndex, entry.getKey())) {
+                run(registration, registration.items.get(entry.getKey()));
+            }
+            shops.add(entry.getValue());
+        }
+        for (Integer shopId : shops) {
+            for (Registration registration : viewersOf(shopIndex, shopId)) {
+                run(registration, registration.shops.get(shopId));
+            }
+        }
+        FLUSH_TIMER.recordSince(start);
+    }
+
+    private <K> List<Registration> viewersOf(Map<K, Set<UUID>> index, K key) {
+        Set<UUID> players = index.get(key);
+        List<Registration> viewers = new ArrayList<>();
+        if (players != null) {
+            for (UUID player : players) {
+                Registration registration = registrations.get(player);
+                if (registration != null) {
+                    viewers.add(registration);
+                }
+            }
+        }
+        return viewers;
+    }
+
+    private void run(Registration registration, Runnable patch) {
+        if (patch == null || registrations.get(registration.player) != registration) {
+            return;
+        }
+        if (!registration.gui.isOpen() || registration.gui.getPlayer().isDisconnected()) {
+            drop(registration.player);
+            return;
+        }
+        try {
+            patch.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static <K> void unindex(Map<K, Set<UUID>> index, K key, UUID player) {
+        Set<UUID> players = index.get(key);
+        if (players != null) {
+            players.remove(player);
+            if (players.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.iruanp.simpleshop;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import net.minecraft.server.MinecraftServer;
+
+/**
+ * Watches how much of each server tick is spent in shop code. Every
+ * {@link Metrics.Timer} recording made on the server thread is added to the
+ * current tick; ones slower than the configured threshold are written to
+ * slow.log with the player who triggered them and, for database calls, the
+ * SQL. The per-tick totals are kept over a rolling window of ticks and shown
+ * as tick.* gauges.
+ *
+ * All state except the published gauge values is only touched on the server
+ * thread.
+ */
+public final class ShopWatchdog {
+    private static final String SLOW_LOG_FILENAME = "slow.log";
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    private static volatile Thread serverThread;
+    private static volatile SlowLog slowLog;
+
+    private static String currentPlayer;
+    // Intervals already counted this tick; a timed operation that encloses them replaces them
+    private static final List<long[]> tickIntervals = new ArrayList<>();
+    private static long tickNanos;
+    private static long[] window = new long[1];
+    private static int windowIndex;
+    private static long windowNanos;
+
+    private static volatile long lastTickNanos;
+    private static volatile long windowTotalNanos;
+    private static volatile long windowMaxNanos;
+
+    private ShopWatchdog() {
+    }
+
+    public static void start(MinecraftServer server) {
+        tickIntervals.clear();
+        tickNanos = 0;
+        window = new long[Math.max(1, Config.getTickWindowTicks())];
+        windowIndex = 0;
+        windowNanos = 0;
+        slowLog = new SlowLog(Config.getConfigDir().resolve(SLOW_LOG_FILENAME),
+                Config.getSlowLogMaxSizeKb() * 1024L, Config.getSlowLogBackups());
+        serverThread = server.getThread();
+
+        Metrics.gauge("tick.shop_ms_last", () -> lastTickNanos / 1_000_000.0);
+        Metrics.gauge("tick.shop_ms_window_total", () -> windowTotalNanos / 1_000_000.0);
+        Metrics.gauge("tick.shop_ms_window_avg", () -> windowTotalNanos / 1_000_000.0 / window.length);
+        Metrics.gauge("tick.shop_ms_window_max", () -> windowMaxNanos / 1_000_000.0);
+    }
+
+    public static void shutdown() {
+        serverThread = null;
+        SlowLog log = slowLog;
+        slowLog = null;
+        if (log != null) {
+            log.shutdown();
+        }
+    }
+
+    /**
+     * Marks the start of an operation done on behalf of a player, so slow
+     * operations recorded until the end of the tick are attributed to them.
+     * Returns the start time to pass to the operation's timer.
+     */
+    public static long begin(String player) {
+        if (Thread.currentThread() == serverThread) {
+            currentPlayer = player;
+        }
+        return System.nanoTime();
+    }
+
+    static void recorded(String operation, String sql, long startNanos, long endNanos) {
+        if (Thread.currentThread() != serverThread) {
+            return;
+        }
+        long elapsed = endNanos - startNanos;
+        long nested = 0;
+        Iterator<long[]> it = tickIntervals.iterator();
+        while (it.hasNext()) {
+            long[] interval = it.next();
+            if (interval[0] >= startNanos && interval[1] <= endNanos) {
+                nested += interval[1] - interval[0];
+                it.remove();
+            }
+        }
+        tickIntervals.add(new long[] { startNanos, endNanos });
+        tickNanos += elapsed - nested;
+
+        long threshold = Config.getSlowOperationThresholdMs() * 1_000_000L;
+        SlowLog log = slowLog;
+        if (log != null && threshold > 0 && elapsed >= threshold) {
+            StringBuilder line = new StringBuilder()
+                    .append(LocalDateTime.now().format(TIMESTAMP))
+                    .append(" SLOW ").append(operation)
+                    .append(' ').append(formatMillis(elapsed)).append(" ms");
+            if (currentPlayer != null) {
+                line.append(" player=").append(currentPlayer);
+            }
+            if (sql != null) {
+                line.append(" sql=").append(sql.replaceAll("\\s+", " ").trim());
+            }
+            log.write(line.toString());
+        }
+    }
+
+    static void endTick(MinecraftServer server) {
+        if (serverThread == null) {
+            return;
+        }
+        windowNanos += tickNanos - window[windowIndex];
+        window[windowIndex] = tickNanos;
+        windowIndex = (windowIndex + 1) % window.length;
+        long max = 0;
+        for (long nanos : window) {
+            max = Math.max(max, nanos);
+        }
+        lastTickNanos = tickNanos;
+        windowTotalNanos = windowNanos;
+        windowMaxNanos = max;
+
+        long budget = Config.getTickBudgetMs() * 1_000_000L;
+        SlowLog log = slowLog;
+        if (log != null && budget > 0 && tickNanos > budget) {
+            log.write(LocalDateTime.now().format(TIMESTAMP) + " TICK " + server.getTicks() + " shop code took "
+                    + formatMillis(tickNanos) + " ms, budget " + Config.getTickBudgetMs() + " ms");
+        }
+
+        tickIntervals.clear();
+        tickNanos = 0;
+        currentPlayer = null;
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.2f", nanos / 1_000_000.0);
+    }
+}
@@ -3,22 +3,32 @@ package com.iruanp.simpleshop;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.minecraft.command.CommandRegistryAccess;
+import net.minecraft.command.argument.ItemStackArgumentType;
 import net.minecraft.entity.player.PlayerInventory;
+import net.minecraft.inventory.SimpleInventory;
+import net.minecraft.item.Item;
 import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.registry.Registries;
 import net.minecraft.registry.RegistryOps;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.command.CommandManager;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.Formatting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.JsonElement;
+import com.iruanp.simpleshop.service.InventoryPlan;
 import com.iruanp.simpleshop.service.ShopService;
-import com.mojang.authlib.GameProfile;
+import com.iruanp.simpleshop.service.ShoppingCart;
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.serialization.JsonOps;
 
 import me.lucko.fabric.api.permissions.v0.Permissions;
@@ -29,13 +39,26 @@ import eu.pb4.common.economy.api.EconomyTransaction;
 import eu.pb4.common.economy.api.EconomyCurrency;
 
 import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.UUID;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Simpleshop implements ModInitializer {
     public static final String MOD_ID = "simpleshop";
 
     public static final Logger LOGGER = LoggerFactory.getLogger(MOD_ID);
+    private static final Metrics.Timer STOCK_TIMER = Metrics.timer("trade.stock");
+    private static final Metrics.Timer BUY_TIMER = Metrics.timer("trade.buy");
+    private static final Metrics.Timer SELL_TIMER = Metrics.timer("trade.sell");
+    private static final Metrics.Timer CHECKOUT_TIMER = Metrics.timer("trade.checkout");
+
     public static String savePath;
     public static ShopDatabase shopDatabase;
     private EconomyProvider economyProvider;
@@ -48,20 +71,56 @@ public class Simpleshop implements ModInitializer {
     private static Simpleshop instance;
 
     public static RegistryOps<JsonElement> jsonops;
+    public static RegistryOps<NbtElement> nbtops;
 
     private NotificationManager notificationManager;
+    private PlayerNameCache playerNames;
+    private EconomyAccountCache economyAccounts;
+    private PayoutLedger payoutLedger;
+    private MetricsReporter metricsReporter;
+    private SearchIndex searchIndex;
+    private ShopViewers shopViewers;
+    private DatabaseMaintenance maintenance;
 
     @Override
     public void onInitialize() {
         instance = this;
         ServerLifecycleEvents.SERVER_STARTED.register(this::onServerStarted);
+        ServerLifecycleEvents.SERVER_STOPPING.register(this::onServerStopping);
+        ServerTickEvents.END_SERVER_TICK.register(server -> {
+            if (shopViewers != null) {
+                shopViewers.flush();
+            }
+        });
+        ServerTickEvents.END_SERVER_TICK.register(ShopWatchdog::endTick);
         CommandRegistrationCallback.EVENT.register(this::registerCommands);
 
         // Register player join event
         ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> {
+            if (playerNames != null) {
+                playerNames.remember(handler.player.getUuid(), handler.player.getName().getString());
+            }
+            if (economyAccounts != null) {
+                economyAccounts.invalidate(handler.player.getUuid());
+            }
             if (notificationManager != null) {
                 notificationManager.checkNotifications(handler.player);
             }
+            if (payoutLedger != null) {
+                payoutLedger.settle(handler.player);
+            }
+        });
+
+        ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> {
+            if (shopService != null) {
+                shopService.dropCart(handler.player.getUuid());
+            }
+            if (shopViewers != null) {
+                shopViewers.drop(handler.player.getUuid());
+            }
+            if (economyAccounts != null) {
+                economyAccounts.invalidate(handler.player.getUuid());
+            }
         });
     }
 
@@ -75,17 +134,58 @@ public class Simpleshop implements ModInitializer {
         savePath = serverPath + "/" + serverInstance.getSaveProperties().getLevelName();
         
         jsonops = serverInstance.getOverworld().getRegistryManager().getOps(JsonOps.INSTANCE);
+        nbtops = serverInstance.getOverworld().getRegistryManager().getOps(NbtOps.INSTANCE);
         
         Config.init(server.getRunDirectory().resolve("config"));
         I18n.init();
         
+        playerNames = new PlayerNameCache(server);
         shopDatabase = new ShopDatabase();
         shopService = new ShopService(shopDatabase);
-        shopGUI = new ShopGUI(shopDatabase, shopService);
+        shopViewers = new ShopViewers();
+        shopDatabase.setViewers(shopViewers);
+        shopGUI = new ShopGUI(shopDatabase, shopService, shopViewers);
+
+        searchIndex = new SearchIndex(shopDatabase.getCatalog());
+        shopDatabase.setSearchIndex(searchIndex);
+        searchIndex.start();
         
         // Initialize NotificationManager after database is ready
         notificationManager = new NotificationManager(shopDatabase, server);
+        shopDatabase.setNotifications(notificationManager);
+
+        new NbtStorageMigrator(shopDatabase, server).start();
+
+        maintenance = new DatabaseMaintenance(shopDatabase);
+        maintenance.start();
         
+        economyAccounts = new EconomyAccountCache(server);
+        resolveCurrency(server);
+
+        payoutLedger = new PayoutLedger(shopDatabase, server, economyAccounts);
+        payoutLedger.start();
+
+        registerGauges();
+        metricsReporter = new MetricsReporter(Config.getConfigDir());
+        metricsReporter.start();
+        ShopWatchdog.start(server);
+    }
+
+    private void registerGauges() {
+        Metrics.gauge("queue.pending_writes", shopDatabase::getPendingWrites);
+        Metrics.gauge("queue.buffered_notifications", notificationManager::getBufferedCount);
+        Metrics.gauge("queue.pending_payout_sellers", payoutLedger::getPendingSellerCount);
+        Metrics.gauge("cache.item_stacks.hit_rate", shopDatabase.getItemStackCache()::getHitRate);
+        Metrics.gauge("cache.item_stacks.size", shopDatabase.getItemStackCache()::size);
+        Metrics.gauge("cache.shop_list.hit_rate", shopGUI::getShopListHitRate);
+        Metrics.gauge("gui.viewers", shopViewers::getViewerCount);
+        Metrics.gauge("cache.player_names.hit_rate", playerNames::getHitRate);
+        Metrics.gauge("cache.economy_accounts.hit_rate", economyAccounts::getHitRate);
+        Metrics.gauge("search.indexed_items", searchIndex::getIndexedItemCount);
+        Metrics.gauge("search.price_index_offers", shopDatabase.getPriceIndex()::size);
+    }
+
+    private void resolveCurrency(MinecraftServer server) {
         var providers = CommonEconomy.providers();
         if (providers.isEmpty()) {
             LOGGER.error(I18n.translate("error.economy_provider").getString());
@@ -99,6 +199,40 @@ public class Simpleshop implements ModInitializer {
             return;
         }
         defaultCurrency = currencies.iterator().next();
+        economyAccounts.setCurrency(defaultCurrency);
+    }
+
+    private void onServerStopping(MinecraftServer server) {
+        ShopWatchdog.shutdown();
+        if (metricsReporter != null) {
+            metricsReporter.shutdown();
+            metricsReporter = null;
+        }
+        if (maintenance != null) {
+            maintenance.shutdown();
+            maintenance = null;
+        }
+        if (notificationManager != null) {
+            notificationManager.shutdown();
+            notificationManager = null;
+        }
+        if (payoutLedger != null) {
+            payoutLedger.shutdown();
+            payoutLedger = null;
+        }
+        if (searchIndex != null) {
+            searchIndex.shutdown();
+            searchIndex = null;
+        }
+        shopViewers = null;
+        if (playerNames != null) {
+            playerNames.shutdown();
+            playerNames = null;
+        }
+        if (shopDatabase != null) {
+            shopDatabase.close();
+            shopDatabase = null;
+        }
     }
 
     private void registerCommands(CommandDispatcher<ServerCommandSource> dispatcher,
@@ -115,25 +249,198 @@ public class Simpleshop implements ModInitializer {
                     .executes(context -> {
                         Config.init(serverInstance.getRunDirectory().resolve("config"));
                         I18n.init();
+                        shopGUI.clearCaches();
+                        // Picks up an economy provider or currency that changed since startup
+                        resolveCurrency(serverInstance);
                         context.getSource().sendFeedback(() -> I18n.translate("command.reload.success"), true);
                         return 1;
+                    }))
+                .then(CommandManager.literal("maintenance")
+                    .requires(Permissions.require("Simpleshop.Admin", 4))
+                    .executes(context -> {
+                        sendMaintenanceReport(context.getSource(), maintenance.getLastReport());
+                        return 1;
+                    })
+                    .then(CommandManager.literal("run")
+                        .executes(context -> {
+                            ServerCommandSource source = context.getSource();
+                            source.sendFeedback(() -> I18n.translate("command.maintenance.started"), true);
+                            maintenance.runNow().thenAcceptAsync(report -> sendMaintenanceReport(source, report), serverInstance);
+                            return 1;
+                        }))
+                    .then(CommandManager.literal("vacuum")
+                        .executes(context -> {
+                            ServerCommandSource source = context.getSource();
+                            source.sendFeedback(() -> I18n.translate("command.maintenance.started"), true);
+                            maintenance.convertToIncrementalVacuum().thenAcceptAsync(result -> sendVacuumConversionResult(source, result), serverInstance);
+                            return 1;
+                        })))
+                .then(CommandManager.literal("payouts")
+                    .executes(context -> {
+                        ServerCommandSource source = context.getSource();
+                        ServerPlayerEntity player = source.getPlayerOrThrow();
+                        payoutLedger.getPending(player.getUuidAsString()).thenAcceptAsync(pending -> {
+                            if (pending.sales == 0) {
+                                source.sendFeedback(() -> I18n.translate("command.payouts.none").formatted(Formatting.YELLOW), false);
+                            } else {
+                                source.sendFeedback(() -> I18n.translate("command.payouts.pending",
+                                        formatCurrency(pending.total), pending.sales).formatted(Formatting.GOLD), false);
+                            }
+                        }, serverInstance);
+                        return 1;
+                    })
+                    .then(CommandManager.literal("all")
+                        .requires(Permissions.require("Simpleshop.Admin", 4))
+                        .executes(context -> {
+                            sendAllPayouts(context.getSource());
+                            return 1;
+                        })))
+                .then(CommandManager.literal("search")
+                    .then(CommandManager.argument("query", StringArgumentType.greedyString())
+                        .executes(context -> {
+                            ServerPlayerEntity player = context.getSource().getPlayerOrThrow();
+                            if (!searchIndex.isReady()) {
+                                context.getSource().sendFeedback(() -> I18n.translate("search.not_ready").formatted(Formatting.YELLOW), false);
+                                return 0;
+                            }
+                            shopGUI.openSearch(player, StringArgumentType.getString(context, "query"));
+                            return 1;
+                        })))
+                .then(CommandManager.literal("find")
+                    .then(CommandManager.argument("item", ItemStackArgumentType.itemStack(registryAccess))
+                        .executes(context -> {
+                            Item item = ItemStackArgumentType.getItemStackArgument(context, "item").getItem();
+                            sendBestPrices(context.getSource(), item);
+                            return 1;
+                        })))
+                .then(CommandManager.literal("stats")
+                    .requires(Permissions.require("Simpleshop.Admin", 4))
+                    .executes(context -> {
+                        sendStats(context.getSource());
+                        return 1;
                     })));
     }
 
-    private int countMatchingItems(ServerPlayerEntity player, ItemStack targetItem) {
-        int total = 0;
-        PlayerInventory inventory = player.getInventory();
+    private void sendBestPrices(ServerCommandSource source, Item item) {
+        String type = Registries.ITEM.getId(item).toString();
+        String itemName = item.getName().getString();
+        int limit = Math.max(1, Config.getFindResultCount());
+        PriceIndex prices = shopDatabase.getPriceIndex();
+        ShopCatalog catalog = shopDatabase.getCatalog();
+
+        List<ShopCatalog.ItemRecord> sellers = prices.getCheapestOffers(type, limit);
+        if (sellers.isEmpty()) {
+            source.sendFeedback(() -> I18n.translate("command.find.no_sellers", itemName).formatted(Formatting.YELLOW), false);
+        } else {
+            source.sendFeedback(() -> I18n.translate("command.find.sellers", itemName).formatted(Formatting.GOLD), false);
+            for (ShopCatalog.ItemRecord listing : sellers) {
+                ShopCatalog.ShopRecord shop = catalog.getShop(listing.shopId);
+                if (shop == null) {
+                    continue;
+                }
+                String stock = shop.isAdminShop ? I18n.translate("command.find.unlimited").getString() : String.valueOf(listing.quantity);
+                source.sendFeedback(() -> I18n.translate("command.find.seller_entry", shop.name,
+                        formatPrice(listing.price), stock).formatted(Formatting.GREEN), false);
+            }
+        }
 
-        for (int i = 0; i < inventory.size(); i++) {
-            ItemStack stack = inventory.getStack(i);
-            if (!stack.isEmpty() && ItemStack.areItemsAndComponentsEqual(stack, targetItem)) {
-                total += stack.getCount();
+        List<ShopCatalog.ItemRecord> buyers = prices.getBestBuyers(type, limit);
+        if (buyers.isEmpty()) {
+            source.sendFeedback(() -> I18n.translate("command.find.no_buyers", itemName).formatted(Formatting.YELLOW), false);
+        } else {
+            source.sendFeedback(() -> I18n.translate("command.find.buyers", itemName).formatted(Formatting.GOLD), false);
+            for (ShopCatalog.ItemRecord listing : buyers) {
+                ShopCatalog.ShopRecord shop = catalog.getShop(listing.shopId);
+                if (shop == null) {
+                    continue;
+                }
+                source.sendFeedback(() -> I18n.translate("command.find.buyer_entry", shop.name,
+                        formatPrice(listing.price)).formatted(Formatting.YELLOW), false);
             }
         }
-        return total;
     }
 
-    private String formatCurrency(long scaledValue) {
+    private void sendStats(ServerCommandSource source) {
+        Map<String, Metrics.Snapshot> timers = Metrics.snapshotTimers();
+        source.sendFeedback(() -> I18n.translate("command.stats.timers", timers.size()).formatted(Formatting.GOLD), false);
+        for (Map.Entry<String, Metrics.Snapshot> entry : timers.entrySet()) {
+            Metrics.Snapshot snapshot = entry.getValue();
+            source.sendFeedback(() -> I18n.translate("command.stats.timer", entry.getKey(), snapshot.count,
+                    formatNanos(snapshot.p50Nanos), formatNanos(snapshot.p99Nanos), formatNanos(snapshot.maxNanos),
+                    formatNanos(snapshot.totalNanos)).formatted(Formatting.GRAY), false);
+        }
+
+        source.sendFeedback(() -> I18n.translate("command.stats.gauges").formatted(Formatting.GOLD), false);
+        for (Map.Entry<String, Double> entry : Metrics.readGauges().entrySet()) {
+            String value = entry.getKey().endsWith("hit_rate")
+                    ? String.format("%.1f%%", entry.getValue() * 100)
+                    : String.format("%.0f", entry.getValue());
+            source.sendFeedback(() -> I18n.translate("command.stats.gauge", entry.getKey(), value).formatted(Formatting.GRAY), false);
+        }
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos >= 1_000_000) {
+            return String.format("%.1fms", nanos / 1_000_000.0);
+        }
+        return String.format("%.1fus", nanos / 1_000.0);
+    }
+
+    private void sendAllPayouts(ServerCommandSource source) {
+        List<String> sellers = payoutLedger.getPendingSellers();
+        if (sellers.isEmpty()) {
+            source.sendFeedback(() -> I18n.translate("command.payouts.none_all").formatted(Formatting.YELLOW), false);
+            return;
+        }
+        source.sendFeedback(() -> I18n.translate("command.payouts.header", sellers.size()).formatted(Formatting.GOLD), false);
+        for (String seller : sellers) {
+            payoutLedger.getPending(seller).thenAcceptAsync(pending -> {
+                if (pending.sales == 0) {
+                    return;
+                }
+                String name = playerNames.getCached(UUID.fromString(seller));
+                source.sendFeedback(() -> I18n.translate("command.payouts.entry", name != null ? name : seller,
+                        formatCurrency(pending.total), pending.sales).formatted(Formatting.GRAY), false);
+            }, serverInstance);
+        }
+    }
+
+    private void sendVacuumConversionResult(ServerCommandSource source, DatabaseMaintenance.VacuumConversion result) {
+        if (result == DatabaseMaintenance.VacuumConversion.ALREADY_INCREMENTAL) {
+            source.sendFeedback(() -> I18n.translate("command.maintenance.vacuum_mode.already").formatted(Formatting.YELLOW), false);
+        } else if (result == DatabaseMaintenance.VacuumConversion.CONVERTED) {
+            source.sendFeedback(() -> I18n.translate("command.maintenance.vacuum_mode.converted").formatted(Formatting.GREEN), true);
+        } else if (result == DatabaseMaintenance.VacuumConversion.OVER_BUDGET) {
+            source.sendFeedback(() -> I18n.translate("command.maintenance.vacuum_mode.over_budget", Config.getMaintenanceTimeBudgetMs()).formatted(Formatting.RED), false);
+        } else {
+            source.sendFeedback(() -> I18n.translate("command.maintenance.vacuum_mode.failed").formatted(Formatting.RED), false);
+        }
+    }
+
+    private void sendMaintenanceReport(ServerCommandSource source, DatabaseMaintenance.Report report) {
+        if (report == null) {
+            source.sendFeedback(() -> I18n.translate("command.maintenance.never").formatted(Formatting.YELLOW), false);
+            return;
+        }
+        String startedAt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+                .format(LocalDateTime.ofInstant(Instant.ofEpochMilli(report.startedAt), ZoneId.systemDefault()));
+        source.sendFeedback(() -> I18n.translate("command.maintenance.last_run", startedAt, report.durationMs).formatted(Formatting.GOLD), false);
+        source.sendFeedback(() -> I18n.translate("command.maintenance.notifications", report.notificationsDeleted).formatted(Formatting.GRAY), false);
+        source.sendFeedback(() -> I18n.translate("command.maintenance.trades", report.tradesDeleted).formatted(Formatting.GRAY), false);
+        source.sendFeedback(() -> I18n.translate("command.maintenance.vacuum", report.pagesFreed).formatted(Formatting.GRAY), false);
+        source.sendFeedback(() -> I18n.translate("command.maintenance.checkpoint", report.walCheckpointed, report.walFrames).formatted(Formatting.GRAY), false);
+        if (report.analyzed) {
+            source.sendFeedback(() -> I18n.translate("command.maintenance.analyze").formatted(Formatting.GRAY), false);
+        }
+        if (report.budgetExceeded) {
+            source.sendFeedback(() -> I18n.translate("command.maintenance.budget", Config.getMaintenanceTimeBudgetMs()).formatted(Formatting.YELLOW), false);
+        }
+        if (report.error != null) {
+            source.sendFeedback(() -> I18n.translate("command.maintenance.error", report.error).formatted(Formatting.RED), false);
+        }
+    }
+
+    public String formatCurrency(long scaledValue) {
         return defaultCurrency.formatValue(scaledValue, true);
     }
 
@@ -149,6 +456,15 @@ public class Simpleshop implements ModInitializer {
 
     // Core methods used by GUI
     public void stockItemInShopCore(ServerCommandSource source, Integer itemId, int amount) {
+        long start = ShopWatchdog.begin(source.getName());
+        try {
+            stockItem(source, itemId, amount);
+        } finally {
+            STOCK_TIMER.recordSince(start);
+        }
+    }
+
+    private void stockItem(ServerCommandSource source, Integer itemId, int amount) {
         if (!shopDatabase.itemExists(itemId)) {
             throw new IllegalStateException(I18n.translate("item.not_found", itemId).getString());
         }
@@ -168,35 +484,33 @@ public class Simpleshop implements ModInitializer {
         }
 
         ServerPlayerEntity player = source.getPlayer();
-        int totalAvailable = countMatchingItems(player, shopItem);
-        if (totalAvailable < amount) {
+        InventoryPlan plan = InventoryPlan.of(player.getInventory(), shopItem);
+        int totalAvailable = plan.getMatchingCount();
+        if (totalAvailable < amount || !plan.remove(amount)) {
             throw new IllegalStateException(I18n.translate("item.stock.not_matching").getString());
         }
 
-        int remaining = amount;
-        PlayerInventory inventory = player.getInventory();
-
-        for (int i = 0; i < inventory.size() && remaining > 0; i++) {
-            ItemStack stack = inventory.getStack(i);
-            if (!stack.isEmpty() && stack.isOf(shopItem.getItem())) {
-                int toRemove = Math.min(remaining, stack.getCount());
-                int newCount = stack.getCount() - toRemove;
-                if (newCount > 0) {
-                    ItemStack newStack = stack.copy();
-                    newStack.setCount(newCount);
-                    inventory.setStack(i, newStack);
-                } else {
-                    inventory.setStack(i, ItemStack.EMPTY);
-                }
-                remaining -= toRemove;
-            }
+        if (shopDatabase.executeTrade(itemId, ShopDatabase.TradeType.STOCK, amount, player.getUuidAsString()) == ShopDatabase.TRADE_REJECTED) {
+            player.getInventory().offerOrDrop(shopItem.copyWithCount(amount));
+            throw new IllegalStateException(I18n.translate("item.not_found", itemId).getString());
         }
-
-        shopDatabase.addStockToItem(itemId, amount);
         source.sendFeedback(() -> I18n.translate("item.stock.success", amount, totalAvailable - amount), false);
     }
 
-    public void buyItemFromShopCore(ServerCommandSource source, Integer itemId, int amount) {
+    /**
+     * @return how many items were bought, which is less than {@code amount}
+     *         when the listing holds less stock
+     */
+    public int buyItemFromShopCore(ServerCommandSource source, Integer itemId, int amount) {
+        long start = ShopWatchdog.begin(source.getName());
+        try {
+            return buyItem(source, itemId, amount);
+        } finally {
+            BUY_TIMER.recordSince(start);
+        }
+    }
+
+    private int buyItem(ServerCommandSource source, Integer itemId, int amount) {
         if (!shopDatabase.itemExists(itemId)) {
             throw new IllegalStateException(I18n.translate("item.not_found", itemId).getString());
         }
@@ -214,25 +528,25 @@ public class Simpleshop implements ModInitializer {
         }
 
         ServerPlayerEntity player = source.getPlayer();
-        int maxPurchaseableAmount = getMaxPurchaseableAmount(player, itemId, amount);
+        ItemStack shopItem = shopDatabase.getItemStack(itemId);
+        if (shopItem == null) {
+            throw new IllegalStateException(I18n.translate("item.not_found", itemId).getString());
+        }
+        InventoryPlan plan = InventoryPlan.of(player.getInventory(), shopItem);
+        int maxPurchaseableAmount = getMaxPurchaseableAmount(plan, itemId, amount);
         
         if (maxPurchaseableAmount <= 0) {
-            if (!shopDatabase.isAdminShopByItemId(itemId)) {
-                int currentStock = shopDatabase.getItemQuantity(itemId);
+            int currentStock = shopDatabase.getItemQuantity(itemId);
+            if (!shopDatabase.isAdminShopByItemId(itemId) && currentStock <= 0) {
                 throw new IllegalStateException(I18n.translate("error.insufficient_stock", currentStock).getString());
             }
             throw new IllegalStateException(I18n.translate("error.insufficient_space").getString());
         }
 
-        ItemStack shopItem = shopDatabase.getItemStack(itemId);
-        ItemStack purchaseStack = shopItem.copy();
-        purchaseStack.setCount(maxPurchaseableAmount);
-
         BigDecimal price = shopDatabase.getItemPrice(itemId);
         long totalCost = scalePrice(price, maxPurchaseableAmount);
         
-        Collection<EconomyAccount> accounts = CommonEconomy.getAccounts(player, defaultCurrency);
-        EconomyAccount account = accounts.isEmpty() ? null : accounts.iterator().next();
+        EconomyAccount account = economyAccounts.get(player);
         if (account == null) {
             throw new IllegalStateException(I18n.translate("error.no_account").getString());
         }
@@ -243,21 +557,37 @@ public class Simpleshop implements ModInitializer {
         }
 
         if (!shopDatabase.isAdminShopByItemId(itemId)) {
+            int newStock = shopDatabase.executeTrade(itemId, ShopDatabase.TradeType.BUY, maxPurchaseableAmount, player.getUuidAsString());
+            if (newStock == ShopDatabase.TRADE_REJECTED) {
+                account.increaseBalance(totalCost);
+                throw new IllegalStateException(I18n.translate("error.insufficient_stock", shopDatabase.getItemQuantity(itemId)).getString());
+            }
+
             if (!itemCreator.isEmpty()) {
-                Collection<EconomyAccount> sellerAccounts = CommonEconomy.getAccounts(serverInstance, new GameProfile(UUID.fromString(itemCreator), ""), defaultCurrency);
-                EconomyAccount sellerAccount = sellerAccounts.isEmpty() ? null : sellerAccounts.iterator().next();
-                if (sellerAccount != null) {
-                    sellerAccount.increaseBalance(totalCost);
-                }
+                payoutLedger.credit(itemCreator, totalCost);
             }
-            shopDatabase.removeStockFromItem(itemId, maxPurchaseableAmount);
         }
 
-        player.getInventory().insertStack(purchaseStack);
+        if (!plan.insert(maxPurchaseableAmount)) {
+            player.getInventory().offerOrDrop(shopItem.copyWithCount(maxPurchaseableAmount));
+        }
         source.sendFeedback(() -> I18n.translate("item.buy.success", maxPurchaseableAmount, formatCurrency(totalCost)), false);
+        return maxPurchaseableAmount;
+    }
+
+    /**
+     * @return how many items were sold
+     */
+    public int sellItemToShopCore(ServerCommandSource source, Integer itemId, int amount) {
+        long start = ShopWatchdog.begin(source.getName());
+        try {
+            return sellItem(source, itemId, amount);
+        } finally {
+            SELL_TIMER.recordSince(start);
+        }
     }
 
-    public void sellItemToShopCore(ServerCommandSource source, Integer itemId, int amount) {
+    private int sellItem(ServerCommandSource source, Integer itemId, int amount) {
         if (!shopDatabase.itemExists(itemId)) {
             throw new IllegalStateException(I18n.translate("item.not_found", itemId).getString());
         }
@@ -284,69 +614,234 @@ public class Simpleshop implements ModInitializer {
         }
 
         ServerPlayerEntity player = source.getPlayer();
-        ItemStack playerStack = player.getMainHandStack();
-        if (!playerStack.isOf(shopItem.getItem()) || playerStack.getCount() < amount) {
+        InventoryPlan plan = InventoryPlan.ofMainHand(player.getInventory(), shopItem);
+        if (plan.getMatchingCount() < amount) {
             throw new IllegalStateException(I18n.translate("item.stock.not_matching").getString());
         }
 
         BigDecimal price = shopDatabase.getItemPrice(itemId);
         long totalCost = scalePrice(price, amount);
 
-        if (!shopDatabase.isAdminShopByItemId(itemId)) {
-            if (!itemCreator.isEmpty()) {
-                Collection<EconomyAccount> creatorAccounts = CommonEconomy.getAccounts(serverInstance, new GameProfile(UUID.fromString(itemCreator), ""), defaultCurrency);
-                EconomyAccount creatorAccount = creatorAccounts.isEmpty() ? null : creatorAccounts.iterator().next();
-                if (creatorAccount == null) {
-                    throw new IllegalStateException(I18n.translate("error.no_account").getString());
-                }
+        EconomyAccount sellerAccount = economyAccounts.get(player);
+        if (sellerAccount == null) {
+            throw new IllegalStateException(I18n.translate("error.no_account").getString());
+        }
 
-                EconomyTransaction creatorResult = creatorAccount.decreaseBalance(totalCost);
-                if (!creatorResult.isSuccessful()) {
-                    throw new IllegalStateException(I18n.translate("error.transaction_failed", creatorResult.message().getString()).getString());
-                }
+        boolean isAdminShop = shopDatabase.isAdminShopByItemId(itemId);
+        EconomyAccount creatorAccount = null;
+        if (!isAdminShop && !itemCreator.isEmpty()) {
+            creatorAccount = economyAccounts.get(UUID.fromString(itemCreator));
+            if (creatorAccount == null) {
+                throw new IllegalStateException(I18n.translate("error.no_account").getString());
             }
         }
 
-        Collection<EconomyAccount> sellerAccounts = CommonEconomy.getAccounts(player, defaultCurrency);
-        EconomyAccount sellerAccount = sellerAccounts.isEmpty() ? null : sellerAccounts.iterator().next();
-        if (sellerAccount == null) {
-            throw new IllegalStateException(I18n.translate("error.no_account").getString());
+        // Everything that can still fail happens before the trade is recorded, and is undone in reverse
+        if (creatorAccount != null) {
+            EconomyTransaction creatorResult = creatorAccount.decreaseBalance(totalCost);
+            if (!creatorResult.isSuccessful()) {
+                throw new IllegalStateException(I18n.translate("error.transaction_failed", creatorResult.message().getString()).getString());
+            }
+        }
+
+        if (!plan.remove(amount)) {
+            if (creatorAccount != null) {
+                creatorAccount.increaseBalance(totalCost);
+            }
+            throw new IllegalStateException(I18n.translate("item.stock.not_matching").getString());
         }
 
         EconomyTransaction sellerResult = sellerAccount.increaseBalance(totalCost);
         if (!sellerResult.isSuccessful()) {
+            player.getInventory().offerOrDrop(shopItem.copyWithCount(amount));
+            if (creatorAccount != null) {
+                creatorAccount.increaseBalance(totalCost);
+            }
             throw new IllegalStateException(I18n.translate("error.transaction_failed", sellerResult.message().getString()).getString());
         }
 
-        playerStack.decrement(amount);
-        if (!shopDatabase.isAdminShopByItemId(itemId)) {
-            shopDatabase.addStockToItem(itemId, amount);
+        if (!isAdminShop) {
+            int newStock = shopDatabase.executeTrade(itemId, ShopDatabase.TradeType.SELL, amount, player.getUuidAsString());
+            if (newStock == ShopDatabase.TRADE_REJECTED) {
+                sellerAccount.decreaseBalance(totalCost);
+                player.getInventory().offerOrDrop(shopItem.copyWithCount(amount));
+                if (creatorAccount != null) {
+                    creatorAccount.increaseBalance(totalCost);
+                }
+                throw new IllegalStateException(I18n.translate("item.not_for_sale").getString());
+            }
         }
 
         source.sendFeedback(() -> I18n.translate("item.sell.success", amount, formatCurrency(totalCost)), false);
+        return amount;
+    }
+
+    /**
+     * Buys everything in the player's cart as one purchase. Every line is
+     * checked against the catalog before anything moves; then the buyer is
+     * charged once, each seller is paid once, and all stock changes are
+     * written in one transaction.
+     */
+    public void checkoutCartCore(ServerCommandSource source) {
+        long start = ShopWatchdog.begin(source.getName());
+        try {
+            checkoutCart(source);
+        } finally {
+            CHECKOUT_TIMER.recordSince(start);
+        }
+    }
+
+    private void checkoutCart(ServerCommandSource source) {
+        ServerPlayerEntity player = source.getPlayer();
+        ShoppingCart cart = shopService.getCart(player);
+        Map<Integer, Integer> lines = cart.getLines();
+        if (lines.isEmpty()) {
+            throw new IllegalStateException(I18n.translate("cart.empty").getString());
+        }
+
+        // Fill a copy of the main inventory line by line, so listings that share slots are checked together
+        SimpleInventory space = new SimpleInventory(PlayerInventory.MAIN_SIZE);
+        for (int i = 0; i < PlayerInventory.MAIN_SIZE; i++) {
+            space.setStack(i, player.getInventory().getStack(i).copy());
+        }
+
+        List<ShopCatalog.ItemRecord> records = new ArrayList<>(lines.size());
+        List<ItemStack> stacks = new ArrayList<>(lines.size());
+        Map<Integer, Integer> stockLines = new LinkedHashMap<>();
+        Map<String, Long> payouts = new LinkedHashMap<>();
+        long totalCost = 0;
+        int totalItems = 0;
+        for (Map.Entry<Integer, Integer> line : lines.entrySet()) {
+            int itemId = line.getKey();
+            int amount = line.getValue();
+            ShopCatalog.ItemRecord item = shopDatabase.getCatalog().getItem(itemId);
+            ItemStack shopItem = item != null ? shopDatabase.getItemStack(itemId) : null;
+            if (shopItem == null || !item.isSelling) {
+                throw new IllegalStateException(I18n.translate("cart.unavailable", itemId).getString());
+            }
+
+            boolean isAdminShop = shopDatabase.isAdminShopByItemId(itemId);
+            if (!isAdminShop) {
+                if (player.getUuidAsString().equals(item.creator)) {
+                    throw new IllegalStateException(I18n.translate("item.buy.own_shop").getString());
+                }
+                if (item.quantity < amount) {
+                    throw new IllegalStateException(I18n.translate("cart.insufficient_stock",
+                            shopItem.getName().getString(), item.quantity).getString());
+                }
+                stockLines.put(itemId, amount);
+            }
+
+            if (!InventoryPlan.of(space, shopItem).insert(amount)) {
+                throw new IllegalStateException(I18n.translate("error.insufficient_space").getString());
+            }
+
+            long cost = scalePrice(item.price, amount);
+            totalCost += cost;
+            totalItems += amount;
+            if (!isAdminShop && item.creator != null && !item.creator.isEmpty()) {
+                payouts.merge(item.creator, cost, Long::sum);
+            }
+            records.add(item);
+            stacks.add(shopItem);
+        }
+
+        EconomyAccount account = economyAccounts.get(player);
+        if (account == null) {
+            throw new IllegalStateException(I18n.translate("error.no_account").getString());
+        }
+
+        EconomyTransaction result = account.decreaseBalance(totalCost);
+        if (!result.isSuccessful()) {
+            throw new IllegalStateException(I18n.translate("error.transaction_failed", result.message().getString()).getString());
+        }
+
+        if (!stockLines.isEmpty() && !shopDatabase.executeTrades(stockLines, ShopDatabase.TradeType.BUY, player.getUuidAsString())) {
+            account.increaseBalance(totalCost);
+            throw new IllegalStateException(I18n.translate("cart.changed").getString());
+        }
+
+        for (Map.Entry<String, Long> payout : payouts.entrySet()) {
+            payoutLedger.credit(payout.getKey(), payout.getValue());
+        }
+
+        int index = 0;
+        for (Map.Entry<Integer, Integer> line : lines.entrySet()) {
+            ItemStack shopItem = stacks.get(index++);
+            if (!InventoryPlan.of(player.getInventory(), shopItem).insert(line.getValue())) {
+                player.getInventory().offerOrDrop(shopItem.copyWithCount(line.getValue()));
+            }
+        }
+        cart.clear();
+
+        final int boughtItems = totalItems;
+        final long paid = totalCost;
+        source.sendFeedback(() -> I18n.translate("cart.checkout.success", boughtItems, lines.size(), formatCurrency(paid)), false);
+        notifyCheckoutSellers(player, records, stockLines);
+    }
+
+    /**
+     * Tells the owners of the listings bought at checkout. Names not cached
+     * yet are looked up in the background, not on the server thread.
+     */
+    private void notifyCheckoutSellers(ServerPlayerEntity buyer, List<ShopCatalog.ItemRecord> records, Map<Integer, Integer> stockLines) {
+        String buyerName = buyer.getName().getString();
+        Map<Integer, UUID> creators = new LinkedHashMap<>();
+        Map<Integer, String> shopNames = new HashMap<>();
+        for (ShopCatalog.ItemRecord item : records) {
+            if (!stockLines.containsKey(item.id) || item.creator == null || item.creator.isEmpty()) {
+                continue;
+            }
+            ShopCatalog.ShopRecord shop = shopDatabase.getCatalog().getShop(item.shopId);
+            if (shop != null) {
+                creators.put(item.id, UUID.fromString(item.creator));
+                shopNames.put(item.id, shop.name);
+            }
+        }
+        if (creators.isEmpty()) {
+            return;
+        }
+        playerNames.prefetch(creators.values()).thenRunAsync(() -> {
+            for (Map.Entry<Integer, UUID> creator : creators.entrySet()) {
+                String creatorName = playerNames.getCached(creator.getValue());
+                if (creatorName != null) {
+                    notificationManager.notifyTrade(creatorName, buyerName, true, creator.getKey(),
+                            shopNames.get(creator.getKey()), stockLines.get(creator.getKey()));
+                }
+            }
+        }, serverInstance);
     }
 
     public NotificationManager getNotificationManager() {
         return notificationManager;
     }
 
-    public int getMaxPurchaseableAmount(ServerPlayerEntity player, Integer itemId, int requestedAmount) {
-        if (shopDatabase.isAdminShopByItemId(itemId)) {
-            ItemStack shopItem = shopDatabase.getItemStack(itemId);
-            ItemStack testStack = shopItem.copy();
-            testStack.setCount(requestedAmount);
-            return PlayerUtils.hasEnoughInventorySpace(player, testStack) ? requestedAmount : 0;
-        }
+    public EconomyAccountCache getEconomyAccounts() {
+        return economyAccounts;
+    }
 
-        int currentStock = shopDatabase.getItemQuantity(itemId);
-        int maxFromStock = Math.min(requestedAmount, currentStock);
-        if (maxFromStock <= 0) {
+    public PlayerNameCache getPlayerNames() {
+        return playerNames;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    public int getMaxPurchaseableAmount(ServerPlayerEntity player, Integer itemId, int requestedAmount) {
+        ItemStack shopItem = shopDatabase.getItemStack(itemId);
+        if (shopItem == null) {
             return 0;
         }
+        return getMaxPurchaseableAmount(InventoryPlan.of(player.getInventory(), shopItem), itemId, requestedAmount);
+    }
 
-        ItemStack shopItem = shopDatabase.getItemStack(itemId);
-        ItemStack testStack = shopItem.copy();
-        testStack.setCount(maxFromStock);
-        return PlayerUtils.hasEnoughInventorySpace(player, testStack) ? maxFromStock : 0;
+    // Limited by stock; the whole amount must fit in the inventory
+    private int getMaxPurchaseableAmount(InventoryPlan plan, Integer itemId, int requestedAmount) {
+        int maxAmount = requestedAmount;
+        if (!shopDatabase.isAdminShopByItemId(itemId)) {
+            maxAmount = Math.min(maxAmount, shopDatabase.getItemQuantity(itemId));
+        }
+        return maxAmount > 0 && plan.getFreeCapacity() >= maxAmount ? maxAmount : 0;
     }
 }
\ No newline at end of file
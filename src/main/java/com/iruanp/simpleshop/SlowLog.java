@@ -0,0 +1,79 @@
+package com.iruanp.simpleshop;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only text log written on its own thread, so a slow operation on the
+ * server thread is not made slower by logging it. When the file reaches its
+ * size limit it is rotated to slow.log.1, slow.log.2 and so on, dropping the
+ * oldest.
+ */
+public class SlowLog {
+    private final Path file;
+    private final long maxBytes;
+    private final int backups;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SimpleShop-SlowLog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SlowLog(Path file, long maxBytes, int backups) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.backups = backups;
+    }
+
+    public void write(String line) {
+        if (!writer.isShutdown()) {
+            writer.execute(() -> append(line));
+        }
+    }
+
+    public void shutdown() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void append(String line) {
+        try {
+            if (maxBytes > 0 && Files.exists(file) && Files.size(file) >= maxBytes) {
+                rotate();
+            }
+            Files.writeString(file, line + System.lineSeparator(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            Simpleshop.LOGGER.error("Failed to write slow operation log", e);
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (backups <= 0) {
+            Files.delete(file);
+            return;
+        }
+        for (int i = backups - 1; i >= 1; i--) {
+            Path older = backup(i);
+            if (Files.exists(older)) {
+                Files.move(older, backup(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, backup(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path backup(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+}
@@ -0,0 +1,107 @@
+package com.iruanp.simpleshop;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A connection together with its prepared statements, keyed by SQL text.
+ * Not thread-safe: each instance belongs to one thread at a time (the writer
+ * thread, or whoever borrowed it from the read pool).
+ *
+ * Statements handed out here are owned by the cache and must not be closed
+ * by the caller.
+ */
+public class StatementCache implements AutoCloseable {
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final boolean checkQueryPlans;
+    private String lastSql;
+
+    public StatementCache(Connection connection) {
+        this(connection, false);
+    }
+
+    public StatementCache(Connection connection, boolean checkQueryPlans) {
+        this.connection = connection;
+        this.checkQueryPlans = checkQueryPlans;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * The SQL of the statement most recently prepared through this cache, for
+     * the slow operation log.
+     */
+    public String getLastSql() {
+        return lastSql;
+    }
+
+    public PreparedStatement prepare(String sql) throws SQLException {
+        lastSql = sql;
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            if (checkQueryPlans) {
+                checkQueryPlan(sql);
+            }
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+        } else {
+            stmt.clearParameters();
+        }
+        return stmt;
+    }
+
+    /**
+     * Returns the query plan steps of the statement that walk an entire table.
+     * Walking a covering index is allowed: it never touches the table rows,
+     * and it is how loading every distinct key at startup is meant to plan.
+     * Empty means every table access is an index search or covering scan.
+     */
+    public List<String> findFullScans(String sql) throws SQLException {
+        List<String> scans = new ArrayList<>();
+        // Parameters stay unbound; the planner only needs to know they are there
+        try (PreparedStatement stmt = connection.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                String detail = rs.getString("detail");
+                if (detail.startsWith("SCAN ") && !detail.startsWith("SCAN CONSTANT ROW")
+                        && !detail.contains(" USING COVERING INDEX ")) {
+                    scans.add(detail);
+                }
+            }
+        }
+        return scans;
+    }
+
+    private void checkQueryPlan(String sql) throws SQLException {
+        List<String> scans = findFullScans(sql);
+        if (!scans.isEmpty()) {
+            Simpleshop.LOGGER.error("Query scans a whole table: {} -> {}", sql, scans);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (PreparedStatement stmt : statements.values()) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
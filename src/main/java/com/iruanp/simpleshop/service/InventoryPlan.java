@@ -0,0 +1,159 @@
+package com.iruanp.simpleshop.service;
+
+import net.minecraft.entity.player.PlayerInventory;
+import net.minecraft.inventory.Inventory;
+import net.minecraft.item.ItemStack;
+
+/**
+ * The result of one pass over an inventory for a single listing item: how
+ * many matching items it holds, how many more would fit, and in which slots.
+ * {@link #remove} and {@link #insert} apply a trade using those slots without
+ * scanning again. Both check the whole change up front and leave the
+ * inventory untouched if it cannot be applied in full.
+ *
+ * A plan is only valid until the inventory changes, so build it right before
+ * the trade on the server thread.
+ */
+public class InventoryPlan {
+    private final Inventory inventory;
+    private final ItemStack template;
+    private final int maxCount;
+
+    // Slots holding the item, with the stack seen there, in scan order
+    private final int[] matchingSlots;
+    private final ItemStack[] matchingStacks;
+    private int matchingSlotCount;
+    private int matchingCount;
+
+    // Storage slots that can take more of the item: partial stacks first, then empty slots
+    private final int[] partialSlots;
+    private int partialSlotCount;
+    private final int[] emptySlots;
+    private int emptySlotCount;
+    private int freeCapacity;
+
+    private InventoryPlan(Inventory inventory, int storageSize, int matchFrom, int matchTo, ItemStack template) {
+        this.inventory = inventory;
+        this.template = template;
+        this.maxCount = template.getMaxCount();
+
+        int size = inventory.size();
+        matchingSlots = new int[size];
+        matchingStacks = new ItemStack[size];
+        partialSlots = new int[storageSize];
+        emptySlots = new int[storageSize];
+
+        for (int i = 0; i < size; i++) {
+            ItemStack stack = inventory.getStack(i);
+            boolean storage = i < storageSize;
+            if (stack.isEmpty()) {
+                if (storage) {
+                    emptySlots[emptySlotCount++] = i;
+                    freeCapacity += maxCount;
+                }
+            } else if (ItemStack.areItemsAndComponentsEqual(stack, template)) {
+                if (i >= matchFrom && i < matchTo) {
+                    matchingSlots[matchingSlotCount] = i;
+                    matchingStacks[matchingSlotCount++] = stack;
+                    matchingCount += stack.getCount();
+                }
+                if (storage && stack.getCount() < maxCount) {
+                    partialSlots[partialSlotCount++] = i;
+                    freeCapacity += maxCount - stack.getCount();
+                }
+            }
+        }
+    }
+
+    /**
+     * Plans against a player's inventory. Matching items are counted in every
+     * slot, but new items only go into the 36 main slots.
+     */
+    public static InventoryPlan of(PlayerInventory inventory, ItemStack template) {
+        return new InventoryPlan(inventory, PlayerInventory.MAIN_SIZE, 0, inventory.size(), template);
+    }
+
+    /**
+     * Plans against a player's inventory, counting only the stack in the main
+     * hand as matching. Selling to a shop takes from the held stack.
+     */
+    public static InventoryPlan ofMainHand(PlayerInventory inventory, ItemStack template) {
+        return new InventoryPlan(inventory, PlayerInventory.MAIN_SIZE, inventory.selectedSlot, inventory.selectedSlot + 1, template);
+    }
+
+    public static InventoryPlan of(Inventory inventory, ItemStack template) {
+        return new InventoryPlan(inventory, inventory.size(), 0, inventory.size(), template);
+    }
+
+    public int getMatchingCount() {
+        return matchingCount;
+    }
+
+    public int getFreeCapacity() {
+        return freeCapacity;
+    }
+
+    /**
+     * Takes {@code amount} matching items out of the planned slots.
+     */
+    public boolean remove(int amount) {
+        if (amount > matchingCount || !isCurrent()) {
+            return false;
+        }
+
+        int remaining = amount;
+        for (int i = 0; i < matchingSlotCount && remaining > 0; i++) {
+            ItemStack stack = matchingStacks[i];
+            int taken = Math.min(remaining, stack.getCount());
+            stack.decrement(taken);
+            if (stack.isEmpty()) {
+                inventory.setStack(matchingSlots[i], ItemStack.EMPTY);
+            }
+            remaining -= taken;
+        }
+        matchingCount -= amount;
+        inventory.markDirty();
+        return true;
+    }
+
+    /**
+     * Puts {@code amount} copies of the template into the planned slots,
+     * topping up partial stacks before using empty slots.
+     */
+    public boolean insert(int amount) {
+        if (amount > freeCapacity || !isCurrent()) {
+            return false;
+        }
+
+        int remaining = amount;
+        for (int i = 0; i < partialSlotCount && remaining > 0; i++) {
+            ItemStack stack = inventory.getStack(partialSlots[i]);
+            int added = Math.min(remaining, maxCount - stack.getCount());
+            stack.increment(added);
+            remaining -= added;
+        }
+        for (int i = 0; i < emptySlotCount && remaining > 0; i++) {
+            int added = Math.min(remaining, maxCount);
+            inventory.setStack(emptySlots[i], template.copyWithCount(added));
+            remaining -= added;
+        }
+        freeCapacity -= amount;
+        inventory.markDirty();
+        return true;
+    }
+
+    private boolean isCurrent() {
+        for (int i = 0; i < matchingSlotCount; i++) {
+            ItemStack stack = inventory.getStack(matchingSlots[i]);
+            if (stack != matchingStacks[i] || stack.isEmpty()) {
+                return false;
+            }
+        }
+        for (int i = 0; i < emptySlotCount; i++) {
+            if (!inventory.getStack(emptySlots[i]).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,6 +1,6 @@
 package com.iruanp.simpleshop.service;
 
-import net.minecraft.entity.player.PlayerInventory;
+import net.minecraft.inventory.Inventory;
 import net.minecraft.item.ItemStack;
 import net.minecraft.server.network.ServerPlayerEntity;
 import com.google.gson.JsonElement;
@@ -8,56 +8,28 @@ import com.iruanp.simpleshop.Simpleshop;
 import com.mojang.serialization.JsonOps;
 
 public class InventoryService {
-    public int countMatchingItems(ServerPlayerEntity player, ItemStack targetItem) {
-        int total = 0;
-        PlayerInventory inventory = player.getInventory();
+    public InventoryPlan plan(ServerPlayerEntity player, ItemStack targetItem) {
+        return InventoryPlan.of(player.getInventory(), targetItem);
+    }
 
-        for (int i = 0; i < inventory.size(); i++) {
-            ItemStack stack = inventory.getStack(i);
-            if (!stack.isEmpty() && ItemStack.areItemsAndComponentsEqual(stack, targetItem)) {
-                total += stack.getCount();
-            }
-        }
-        return total;
+    public InventoryPlan planSale(ServerPlayerEntity player, ItemStack targetItem) {
+        return InventoryPlan.ofMainHand(player.getInventory(), targetItem);
     }
 
-    public boolean removeItems(ServerPlayerEntity player, ItemStack targetItem, int amount) {
-        PlayerInventory inventory = player.getInventory();
-        int remaining = amount;
+    public int countMatchingItems(ServerPlayerEntity player, ItemStack targetItem) {
+        return plan(player, targetItem).getMatchingCount();
+    }
 
-        for (int i = 0; i < inventory.size() && remaining > 0; i++) {
-            ItemStack stack = inventory.getStack(i);
-            if (!stack.isEmpty() && stack.isOf(targetItem.getItem())) {
-                int toRemove = Math.min(remaining, stack.getCount());
-                int newCount = stack.getCount() - toRemove;
-                if (newCount > 0) {
-                    ItemStack newStack = stack.copy();
-                    newStack.setCount(newCount);
-                    inventory.setStack(i, newStack);
-                } else {
-                    inventory.setStack(i, ItemStack.EMPTY);
-                }
-                remaining -= toRemove;
-            }
-        }
+    public int countMatchingItems(Inventory inventory, ItemStack targetItem) {
+        return InventoryPlan.of(inventory, targetItem).getMatchingCount();
+    }
 
-        return remaining == 0;
+    public boolean removeItems(ServerPlayerEntity player, ItemStack targetItem, int amount) {
+        return plan(player, targetItem).remove(amount);
     }
 
     public boolean hasEnoughInventorySpace(ServerPlayerEntity player, ItemStack itemToAdd) {
-        PlayerInventory inventory = player.getInventory();
-        int amountLeft = itemToAdd.getCount();
-
-        for (int i = 0; i < inventory.main.size() && amountLeft > 0; i++) {
-            ItemStack stack = inventory.main.get(i);
-            if (stack.isEmpty()) {
-                amountLeft -= itemToAdd.getMaxCount();
-            } else if (stack.isOf(itemToAdd.getItem()) && stack.isStackable()) {
-                amountLeft -= (stack.getMaxCount() - stack.getCount());
-            }
-        }
-
-        return amountLeft <= 0;
+        return plan(player, itemToAdd).getFreeCapacity() >= itemToAdd.getCount();
     }
 
     public boolean addItems(ServerPlayerEntity player, ItemStack itemStack) {
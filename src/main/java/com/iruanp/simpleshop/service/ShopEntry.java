@@ -5,6 +5,11 @@ public class ShopEntry {
     public String description;
     public boolean isAdminShop;
     public String item;
+    public long version;
+    public int listingCount;
+    public long totalStock;
+    public long tradeCount;
+    public long lastTradeAt;
 
     public ShopEntry(String name, String description, boolean isAdminShop, String item) {
         this.name = name;
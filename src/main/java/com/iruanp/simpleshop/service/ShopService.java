@@ -1,24 +1,30 @@
 package com.iruanp.simpleshop.service;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.minecraft.item.ItemStack;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.util.Formatting;
 
+import com.iruanp.simpleshop.Metrics;
 import com.iruanp.simpleshop.ShopDatabase;
+import com.iruanp.simpleshop.ShopWatchdog;
 import com.iruanp.simpleshop.Simpleshop;
 import com.iruanp.simpleshop.I18n;
 import com.iruanp.simpleshop.PlayerUtils;
 
 public class ShopService {
+    private static final Metrics.Timer STOCK_TIMER = Metrics.timer("service.stockItem");
+    private static final Metrics.Timer BUY_TIMER = Metrics.timer("service.buyItem");
+    private static final Metrics.Timer ADD_TO_CART_TIMER = Metrics.timer("service.addToCart");
+    private static final Metrics.Timer MOVE_ITEM_TIMER = Metrics.timer("service.moveItemToShop");
+
     private final ShopDatabase database;
     private final InventoryService inventoryService;
+    private final Map<UUID, ShoppingCart> carts = new ConcurrentHashMap<>();
 
     public ShopService(ShopDatabase database) {
         this.database = database;
@@ -61,11 +67,36 @@ public class ShopService {
         return database.getShopItems(shopName);
     }
 
+    public List<ShopItemEntry> getShopItemsAfter(String shopName, int afterItemId, int limit) {
+        return database.getShopItemsAfter(shopName, afterItemId, limit);
+    }
+
+    public List<ShopItemEntry> getShopItemsBefore(String shopName, int beforeItemId, int limit) {
+        return database.getShopItemsBefore(shopName, beforeItemId, limit);
+    }
+
+    public int getShopItemCount(String shopName) {
+        return database.getShopItemCount(shopName);
+    }
+
+    public void prefetchShopItems(String shopName, int afterItemId, int limit) {
+        database.prefetchShopItems(shopName, afterItemId, limit);
+    }
+
     public boolean isAdminShop(String shopName) {
         return database.isAdminShop(shopName);
     }
 
     public void stockItem(ServerPlayerEntity player, Integer itemId, int amount) {
+        long start = ShopWatchdog.begin(player.getName().getString());
+        try {
+            stock(player, itemId, amount);
+        } finally {
+            STOCK_TIMER.recordSince(start);
+        }
+    }
+
+    private void stock(ServerPlayerEntity player, Integer itemId, int amount) {
         if (!database.itemExists(itemId)) {
             throw new IllegalStateException(I18n.translate("item.not_found", itemId).getString());
         }
@@ -84,17 +115,27 @@ public class ShopService {
             throw new IllegalStateException(I18n.translate("item.not_found", itemId).getString());
         }
 
-        int totalAvailable = inventoryService.countMatchingItems(player, shopItem);
-        if (totalAvailable < amount) {
+        InventoryPlan plan = inventoryService.plan(player, shopItem);
+        if (plan.getMatchingCount() < amount || !plan.remove(amount)) {
             throw new IllegalStateException(I18n.translate("item.stock.not_matching").getString());
         }
 
-        if (inventoryService.removeItems(player, shopItem, amount)) {
-            database.addStockToItem(itemId, amount);
+        if (database.executeTrade(itemId, ShopDatabase.TradeType.STOCK, amount, player.getUuidAsString()) == ShopDatabase.TRADE_REJECTED) {
+            player.getInventory().offerOrDrop(shopItem.copyWithCount(amount));
+            throw new IllegalStateException(I18n.translate("item.not_found", itemId).getString());
         }
     }
 
     public void buyItem(ServerPlayerEntity player, Integer itemId, int amount) {
+        long start = ShopWatchdog.begin(player.getName().getString());
+        try {
+            buy(player, itemId, amount);
+        } finally {
+            BUY_TIMER.recordSince(start);
+        }
+    }
+
+    private void buy(ServerPlayerEntity player, Integer itemId, int amount) {
         if (!database.itemExists(itemId)) {
             throw new IllegalStateException(I18n.translate("item.not_found", itemId).getString());
         }
@@ -109,72 +150,89 @@ public class ShopService {
         }
 
         ItemStack shopItem = database.getItemStack(itemId);
-        int maxPurchaseableAmount = calculateMaxPurchaseableAmount(player, itemId, amount);
+        InventoryPlan plan = inventoryService.plan(player, shopItem);
+        int maxPurchaseableAmount = calculateMaxPurchaseableAmount(plan, itemId, amount);
 
         if (maxPurchaseableAmount <= 0) {
-            if (!database.isAdminShopByItemId(itemId)) {
-                int currentStock = database.getItemQuantity(itemId);
+            int currentStock = database.getItemQuantity(itemId);
+            if (!database.isAdminShopByItemId(itemId) && currentStock <= 0) {
                 throw new IllegalStateException(I18n.translate("error.insufficient_stock", currentStock).getString());
             }
             throw new IllegalStateException(I18n.translate("error.insufficient_space").getString());
         }
 
-        ItemStack purchaseStack = shopItem.copy();
-        purchaseStack.setCount(maxPurchaseableAmount);
-
-        if (inventoryService.addItems(player, purchaseStack)) {
-            if (!database.isAdminShopByItemId(itemId)) {
-                database.removeStockFromItem(itemId, maxPurchaseableAmount);
+        if (!database.isAdminShopByItemId(itemId)) {
+            int newStock = database.executeTrade(itemId, ShopDatabase.TradeType.BUY, maxPurchaseableAmount, player.getUuidAsString());
+            if (newStock == ShopDatabase.TRADE_REJECTED) {
+                throw new IllegalStateException(I18n.translate("error.insufficient_stock", database.getItemQuantity(itemId)).getString());
             }
         }
+        if (!plan.insert(maxPurchaseableAmount)) {
+            player.getInventory().offerOrDrop(shopItem.copyWithCount(maxPurchaseableAmount));
+        }
     }
 
     public int calculateMaxPurchaseableAmount(ServerPlayerEntity player, Integer itemId, int requestedAmount) {
-        if (database.isAdminShopByItemId(itemId)) {
-            ItemStack shopItem = database.getItemStack(itemId);
-            ItemStack testStack = shopItem.copy();
-            testStack.setCount(requestedAmount);
-            return inventoryService.hasEnoughInventorySpace(player, testStack) ? requestedAmount : 0;
-        } else {
-            int currentStock = database.getItemQuantity(itemId);
-            int maxFromStock = Math.min(requestedAmount, currentStock);
-            ItemStack shopItem = database.getItemStack(itemId);
-            ItemStack testStack = shopItem.copy();
-            testStack.setCount(maxFromStock);
-            return inventoryService.hasEnoughInventorySpace(player, testStack) ? maxFromStock : 0;
+        ItemStack shopItem = database.getItemStack(itemId);
+        if (shopItem == null) {
+            return 0;
         }
+        return calculateMaxPurchaseableAmount(inventoryService.plan(player, shopItem), itemId, requestedAmount);
     }
 
-    public List<ShopEntry> getUserShops(String excludeShopName) {
-        List<ShopEntry> shops = new ArrayList<>();
-        String sql = "SELECT name, description, isAdminShop, item FROM shops WHERE isAdminShop = 0 AND name != ? ORDER BY name";
-
-        try (PreparedStatement pstmt = database.getConnection().prepareStatement(sql)) {
-            pstmt.setString(1, excludeShopName);
-            ResultSet rs = pstmt.executeQuery();
-            while (rs.next()) {
-                shops.add(new ShopEntry(
-                        rs.getString("name"),
-                        rs.getString("description"),
-                        rs.getBoolean("isAdminShop"),
-                        rs.getString("item")));
+    // Limited by stock; the whole amount must fit in the inventory
+    private int calculateMaxPurchaseableAmount(InventoryPlan plan, Integer itemId, int requestedAmount) {
+        int maxAmount = requestedAmount;
+        if (!database.isAdminShopByItemId(itemId)) {
+            maxAmount = Math.min(maxAmount, database.getItemQuantity(itemId));
+        }
+        return maxAmount > 0 && plan.getFreeCapacity() >= maxAmount ? maxAmount : 0;
+    }
+
+    public ShoppingCart getCart(ServerPlayerEntity player) {
+        return carts.computeIfAbsent(player.getUuid(), uuid -> new ShoppingCart());
+    }
+
+    public void addToCart(ServerPlayerEntity player, int itemId, int amount) {
+        long start = ShopWatchdog.begin(player.getName().getString());
+        try {
+            if (!database.itemExists(itemId)) {
+                throw new IllegalStateException(I18n.translate("item.not_found", itemId).getString());
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+
+            if (!database.isItemForSale(itemId)) {
+                throw new IllegalStateException(I18n.translate("item.not_for_sale").getString());
+            }
+
+            if (!database.isAdminShopByItemId(itemId) && player.getUuidAsString().equals(database.getItemCreator(itemId))) {
+                throw new IllegalStateException(I18n.translate("item.buy.own_shop").getString());
+            }
+
+            if (!getCart(player).add(itemId, amount)) {
+                throw new IllegalStateException(I18n.translate("cart.full", ShoppingCart.MAX_LINES).getString());
+            }
+        } finally {
+            ADD_TO_CART_TIMER.recordSince(start);
         }
-        return shops;
+    }
+
+    public void dropCart(UUID playerUuid) {
+        carts.remove(playerUuid);
+    }
+
+    public List<ShopEntry> getUserShops(String excludeShopName) {
+        return database.getUserShops(excludeShopName);
     }
 
     public void moveItemToShop(ServerPlayerEntity player, int itemId, String fromShopName, String toShopName) {
+        long start = ShopWatchdog.begin(player.getName().getString());
         try {
             int targetShopId = database.getShopIdByName(toShopName);
-            
-            String sql = "UPDATE items SET shopId = ? WHERE id = ?";
-            try (PreparedStatement pstmt = database.getConnection().prepareStatement(sql)) {
-                pstmt.setInt(1, targetShopId);
-                pstmt.setInt(2, itemId);
-                pstmt.executeUpdate();
+            if (targetShopId == -1 || !database.itemExists(itemId)) {
+                player.sendMessage(I18n.translate("error.move_failed").formatted(Formatting.RED), false);
+                throw new IllegalStateException(I18n.translate("error.move_failed").getString());
             }
+            database.moveItem(itemId, targetShopId);
 
             player.sendMessage(I18n.translate("item.move.success", fromShopName, toShopName).formatted(Formatting.GREEN), false);
 
@@ -184,10 +242,8 @@ public class ShopService {
                     player.getName().getString(), fromShopName, toShopName).getString();
                 Simpleshop.getInstance().getNotificationManager().notifyPlayer(creatorName, notificationMsg);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            player.sendMessage(I18n.translate("error.move_failed").formatted(Formatting.RED), false);
-            throw new IllegalStateException(e);
+        } finally {
+            MOVE_ITEM_TIMER.recordSince(start);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,47 @@
+package com.iruanp.simpleshop.service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Listings a player has picked for checkout, in the order they were added.
+ * Adding a listing that is already in the cart raises its amount. Carts only
+ * live in memory and are dropped when the player leaves.
+ */
+public class ShoppingCart {
+    public static final int MAX_LINES = 45;
+
+    private final Map<Integer, Integer> lines = new LinkedHashMap<>();
+
+    public synchronized boolean add(int itemId, int amount) {
+        if (!lines.containsKey(itemId) && lines.size() >= MAX_LINES) {
+            return false;
+        }
+        lines.merge(itemId, amount, Integer::sum);
+        return true;
+    }
+
+    public synchronized void remove(int itemId) {
+        lines.remove(itemId);
+    }
+
+    /**
+     * Returns a copy of the cart, item id to amount.
+     */
+    public synchronized Map<Integer, Integer> getLines() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(lines));
+    }
+
+    public synchronized int size() {
+        return lines.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return lines.isEmpty();
+    }
+
+    public synchronized void clear() {
+        lines.clear();
+    }
+}
@@ -0,0 +1,84 @@
+package com.iruanp.simpleshop;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Runs the statements the shop issues at runtime through EXPLAIN QUERY PLAN
+ * against a freshly migrated schema and fails on any that scan a whole table.
+ * The catalog's startup load reads every row on purpose and is not listed.
+ */
+class QueryPlanTest {
+    private static Connection connection;
+    private static StatementCache statements;
+
+    @BeforeAll
+    static void migrate() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        SchemaMigrations.migrate(connection);
+        statements = new StatementCache(connection);
+    }
+
+    @AfterAll
+    static void close() {
+        statements.close();
+    }
+
+    static Stream<String> runtimeStatements() {
+        return Stream.of(
+                // Notifications
+                "UPDATE notifications SET message = ? WHERE digest_key = ? AND is_read = 0",
+                "SELECT id, message, digest_key FROM notifications WHERE player_name = ? AND is_read = 0 ORDER BY id",
+                "SELECT DISTINCT player_name FROM notifications WHERE is_read = 0",
+                "UPDATE notifications SET is_read = 1 WHERE player_name = ? AND is_read = 0 AND id <= ?",
+                "DELETE FROM notifications WHERE id IN " +
+                        "(SELECT id FROM notifications WHERE created_at < datetime('now', ?) LIMIT ?)",
+                // Payouts
+                "SELECT COALESCE(SUM(amount), 0), COUNT(*), COALESCE(MAX(id), 0) FROM payouts WHERE seller = ?",
+                "SELECT DISTINCT seller FROM payouts",
+                "DELETE FROM payouts WHERE seller = ? AND id <= ?",
+                // Listings
+                "DELETE FROM items WHERE id = ?",
+                "UPDATE items SET shopId = ? WHERE id = ?",
+                "UPDATE items SET nbtBlob = ?, nbtData = NULL WHERE id = ?",
+                "UPDATE items SET quantity = quantity + ? WHERE id = ? AND quantity >= ?",
+                "UPDATE items SET quantity = quantity + ? WHERE id = ? AND quantity >= ? AND isSelling = ?",
+                "UPDATE items SET price = ? WHERE id = ?",
+                "UPDATE items SET isSelling = NOT isSelling WHERE id = ?",
+                // Shops
+                "UPDATE shops SET description = ? WHERE name = ?",
+                "UPDATE shops SET name = ? WHERE name = ?",
+                "UPDATE shops SET item = ? WHERE name = ?",
+                "DELETE FROM items WHERE shopId IN (SELECT id FROM shops WHERE name = ?)",
+                "DELETE FROM shops WHERE name = ?",
+                "DELETE FROM shop_stats WHERE shop_id IN (SELECT id FROM shops WHERE name = ?)",
+                // Trades and rollups
+                "DELETE FROM trades WHERE id IN " +
+                        "(SELECT id FROM trades WHERE created_at < datetime('now', ?) LIMIT ?)",
+                "SELECT COALESCE(SUM(trades), 0), COALESCE(SUM(volume), 0), MIN(min_price), MAX(max_price), SUM(value_sum) " +
+                        "FROM trade_rollups_daily WHERE item_id = ? AND bucket >= date('now', ?) AND type IN ('BUY', 'SELL')");
+    }
+
+    @ParameterizedTest
+    @MethodSource("runtimeStatements")
+    void usesIndexes(String sql) throws SQLException {
+        assertEquals(List.of(), statements.findFullScans(sql), sql);
+    }
+
+    @Test
+    void reportsFullScans() throws SQLException {
+        assertFalse(statements.findFullScans("SELECT id FROM items WHERE price > ?").isEmpty());
+    }
+}